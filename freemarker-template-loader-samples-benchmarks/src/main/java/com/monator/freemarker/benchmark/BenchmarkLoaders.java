@@ -0,0 +1,163 @@
+package com.monator.freemarker.benchmark;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Properties;
+
+import com.monator.freemarker.service.AbstractFreemarkerTemplateLoader;
+import com.monator.freemarker.service.CMISFreemarkerTemplateLoader;
+import com.monator.freemarker.service.LiferayFreemarkerTemplateLoader;
+import com.monator.freemarker.service.ParallelCompositeTemplateLoader;
+import com.monator.freemarker.service.ParsedTemplateCache;
+import com.monator.freemarker.view.SharedTemplateFreeMarkerConfigurer;
+
+import freemarker.cache.TemplateLoader;
+import freemarker.template.Configuration;
+
+/**
+ * Creates the template loaders and the FreeMarker configuration the benchmarks measure, with the settings of the portlet's
+ * <code>applicationContext.xml</code> and <code>freemarker.properties</code>, except for the snapshot store and the invalidation by
+ * change log and model listeners, which have no backend changes to react to in the benchmarks.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+public final class BenchmarkLoaders {
+
+    /** Maximum number of template bytes kept in memory by each loader. */
+    private static final long CONTENT_CACHE_MAX_BYTES = 4194304;
+
+    /** Milliseconds a backend call may take. */
+    private static final long CALL_TIMEOUT_MILLIS = 2000;
+
+    /** Encoding of the templates. */
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * Hidden constructor.
+     */
+    private BenchmarkLoaders() {
+    }
+
+    /**
+     * Creates a CMIS loader connected to the in-memory repository.
+     * 
+     * @param staleWhileRevalidate
+     *            if true, the last known template source is served while it is revalidated
+     * @return the initialized loader
+     * @throws InterruptedException
+     *             if interrupted while connecting to the repository
+     */
+    public static CMISFreemarkerTemplateLoader createCMISLoader(final boolean staleWhileRevalidate) throws InterruptedException {
+        CMISFreemarkerTemplateLoader loader = new CMISFreemarkerTemplateLoader(BenchmarkTemplates.FOLDER_PATH, false, null);
+        loader.setConnectionFactory(InMemoryCMISRepository.getConnectionFactory());
+        loader.setFolderCacheTtlSeconds(300);
+        loader.setNegativeCacheTtlSeconds(60);
+        loader.setNameIndexTtlSeconds(60);
+        configure(loader, staleWhileRevalidate);
+        loader.init();
+        return loader;
+    }
+
+    /**
+     * Creates a Liferay loader for the Site of the installed {@link LiferayStubs}.
+     * 
+     * @param staleWhileRevalidate
+     *            if true, the last known template source is served while it is revalidated
+     * @return the initialized loader
+     */
+    public static LiferayFreemarkerTemplateLoader createLiferayLoader(final boolean staleWhileRevalidate) {
+        LiferayFreemarkerTemplateLoader loader = new LiferayFreemarkerTemplateLoader(LiferayStubs.SITE_NAME, false,
+                BenchmarkTemplates.FOLDER_PATH, false, null);
+        loader.setNameIndexTtlSeconds(300);
+        configure(loader, staleWhileRevalidate);
+        loader.init();
+        return loader;
+    }
+
+    /**
+     * Creates a FreeMarker configuration asking the loaders in parallel, like the <code>freemarkerConfig</code> of the portlet.
+     * 
+     * @param updateDelaySeconds
+     *            seconds FreeMarker waits before checking a cached template for changes again
+     * @param loaders
+     *            the loaders in priority order
+     * @return the configuration
+     * @throws Exception
+     *             if the configuration could not be created
+     */
+    public static Configuration createConfiguration(final int updateDelaySeconds, final TemplateLoader... loaders) throws Exception {
+        SharedTemplateFreeMarkerConfigurer configurer = new SharedTemplateFreeMarkerConfigurer();
+        configurer.setParsedTemplateCache(new ParsedTemplateCache(500));
+        configurer.setPreTemplateLoaders(new TemplateLoader[] {new ParallelCompositeTemplateLoader(Arrays.asList(loaders))});
+        configurer.setPreferFileSystemAccess(false);
+        Properties settings = new Properties();
+        settings.setProperty("template_update_delay", String.valueOf(updateDelaySeconds));
+        configurer.setFreemarkerSettings(settings);
+        configurer.afterPropertiesSet();
+        return configurer.getConfiguration();
+    }
+
+    /**
+     * Looks up and reads the benchmark templates and the missing names once, so that the caches of the loader are warm.
+     * 
+     * @param loader
+     *            the loader
+     * @throws IOException
+     *             if a template could not be read
+     */
+    public static void warm(final TemplateLoader loader) throws IOException {
+        for (String name : new String[] {BenchmarkTemplates.HIT, BenchmarkTemplates.LIBRARY, BenchmarkTemplates.MISS,
+                BenchmarkTemplates.LOCALIZED_MISS}) {
+            Object templateSource = loader.findTemplateSource(name);
+            if (templateSource != null) {
+                read(loader, templateSource);
+            }
+        }
+    }
+
+    /**
+     * Reads a template the way FreeMarker does.
+     * 
+     * @param loader
+     *            the loader
+     * @param templateSource
+     *            the template source found by the loader
+     * @return the number of characters read
+     * @throws IOException
+     *             if the template could not be read
+     */
+    public static int read(final TemplateLoader loader, final Object templateSource) throws IOException {
+        int length = 0;
+        loader.getLastModified(templateSource);
+        Reader reader = loader.getReader(templateSource, ENCODING);
+        try {
+            char[] buffer = new char[4096];
+            for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer)) {
+                length += read;
+            }
+        } finally {
+            reader.close();
+            loader.closeTemplateSource(templateSource);
+        }
+        return length;
+    }
+
+    /**
+     * Applies the settings the loaders share.
+     * 
+     * @param loader
+     *            the loader
+     * @param staleWhileRevalidate
+     *            if true, the last known template source is served while it is revalidated
+     */
+    private static void configure(final AbstractFreemarkerTemplateLoader loader, final boolean staleWhileRevalidate) {
+        loader.setStaleWhileRevalidate(staleWhileRevalidate);
+        loader.setRevalidationThreads(2);
+        loader.setContentCacheMaxBytes(CONTENT_CACHE_MAX_BYTES);
+        loader.setCallTimeoutMillis(CALL_TIMEOUT_MILLIS);
+        loader.setCircuitBreakerFailures(5);
+        loader.setCircuitBreakerOpenSeconds(30);
+        loader.setDependencyPrefetchThreads(4);
+    }
+}
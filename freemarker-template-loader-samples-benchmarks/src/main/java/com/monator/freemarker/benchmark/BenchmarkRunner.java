@@ -0,0 +1,40 @@
+package com.monator.freemarker.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once for each thread count in the system property <code>benchmark.threads</code>, by default 1, 4 and 16, and
+ * writes the results of each run to <code>jmh-result-&lt;threads&gt;-threads.json</code> for comparison with earlier runs.
+ * 
+ * Usage: <code>java [-Dbenchmark.threads=1,4,16] -jar target/benchmarks.jar [benchmark regexp]</code>
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+public final class BenchmarkRunner {
+
+    /**
+     * Hidden constructor.
+     */
+    private BenchmarkRunner() {
+    }
+
+    /**
+     * @param args
+     *            optional regexp selecting the benchmarks to run, all by default
+     * @throws RunnerException
+     *             if a benchmark failed
+     */
+    public static void main(final String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName() + ".*Benchmark";
+        for (String threadCount : System.getProperty("benchmark.threads", "1,4,16").split(",")) {
+            int threads = Integer.parseInt(threadCount.trim());
+            Options options = new OptionsBuilder().include(include).threads(threads).resultFormat(ResultFormatType.JSON)
+                    .result("jmh-result-" + threads + "-threads.json").build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.monator.freemarker.benchmark;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The templates the benchmarks are run against, the same in every backend: a view that imports a macro library, and a number of other
+ * templates so that folder listings are of a realistic size.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+public final class BenchmarkTemplates {
+
+    /** Path of the template folder in the backends. */
+    public static final String FOLDER_PATH = "Templates/Freemarker";
+
+    /** Name of a template that exists. */
+    public static final String HIT = "view.ftl";
+
+    /** Name of a template that doesn't exist. */
+    public static final String MISS = "missing.ftl";
+
+    /** Name of a localized variant that doesn't exist, as FreeMarker asks for before {@link #HIT}. */
+    public static final String LOCALIZED_MISS = "view_sv_SE.ftl";
+
+    /** Name of the macro library imported by {@link #HIT}. */
+    public static final String LIBRARY = "macros.ftl";
+
+    /** Number of other templates in the template folder. */
+    private static final int OTHER_TEMPLATES = 50;
+
+    /**
+     * Hidden constructor.
+     */
+    private BenchmarkTemplates() {
+    }
+
+    /**
+     * @return the templates by name
+     */
+    public static Map<String, String> getTemplates() {
+        Map<String, String> templates = new LinkedHashMap<String, String>();
+        templates.put(HIT, "<#import \"" + LIBRARY + "\" as m>\n<@m.page title=\"Benchmark\">\n<#list 1..20 as i>"
+                + "<@m.item index=i/>\n</#list>\n</@m.page>\n");
+        templates.put(LIBRARY, "<#macro page title><html><head><title>${title}</title></head><body><#nested></body></html></#macro>\n"
+                + "<#macro item index><p class=\"item\">Item ${index}</p></#macro>\n");
+        for (int i = 0; i < OTHER_TEMPLATES; i++) {
+            templates.put("other" + i + ".ftl", "<p>Other template " + i + "</p>\n");
+        }
+        return templates;
+    }
+}
@@ -0,0 +1,102 @@
+package com.monator.freemarker.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.monator.freemarker.service.CMISFreemarkerTemplateLoader;
+
+/**
+ * Measures the warm {@link CMISFreemarkerTemplateLoader} against the in-memory repository: lookups of a template that exists, of a
+ * template that doesn't and of a localized variant that doesn't, and a lookup followed by reading the template.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CMISTemplateLoaderBenchmark {
+
+    /** Determines if the last known template source is served while it is revalidated. */
+    @Param({"false", "true"})
+    public boolean staleWhileRevalidate;
+
+    /** The loader measured. */
+    private CMISFreemarkerTemplateLoader loader;
+
+    /**
+     * Creates the loader and warms its caches.
+     * 
+     * @throws Exception
+     *             if the loader could not be created
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        loader = BenchmarkLoaders.createCMISLoader(staleWhileRevalidate);
+        BenchmarkLoaders.warm(loader);
+    }
+
+    /**
+     * Stops the loader.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        loader.destroy();
+    }
+
+    /**
+     * @return the template source
+     * @throws IOException
+     *             if the lookup failed
+     */
+    @Benchmark
+    public Object findHit() throws IOException {
+        return loader.findTemplateSource(BenchmarkTemplates.HIT);
+    }
+
+    /**
+     * @return <code>null</code>
+     * @throws IOException
+     *             if the lookup failed
+     */
+    @Benchmark
+    public Object findMiss() throws IOException {
+        return loader.findTemplateSource(BenchmarkTemplates.MISS);
+    }
+
+    /**
+     * @return <code>null</code>
+     * @throws IOException
+     *             if the lookup failed
+     */
+    @Benchmark
+    public Object findLocalizedMiss() throws IOException {
+        return loader.findTemplateSource(BenchmarkTemplates.LOCALIZED_MISS);
+    }
+
+    /**
+     * @return the number of characters read
+     * @throws IOException
+     *             if the lookup or read failed
+     */
+    @Benchmark
+    public int findAndReadHit() throws IOException {
+        return BenchmarkLoaders.read(loader, loader.findTemplateSource(BenchmarkTemplates.HIT));
+    }
+}
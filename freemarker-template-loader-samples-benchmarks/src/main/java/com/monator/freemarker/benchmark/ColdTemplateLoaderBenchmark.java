@@ -0,0 +1,151 @@
+package com.monator.freemarker.benchmark;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.monator.freemarker.service.CMISFreemarkerTemplateLoader;
+import com.monator.freemarker.service.LiferayFreemarkerTemplateLoader;
+
+import freemarker.template.Configuration;
+import freemarker.template.TemplateException;
+
+/**
+ * Measures the first call after the loaders have been created, with all their caches and Liferay's key pool empty, like the first
+ * renders after a restart. Every iteration gets new loaders and a new FreeMarker configuration and measures one call per thread.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 50)
+@Fork(1)
+public class ColdTemplateLoaderBenchmark {
+
+    /** Latency of each Document and Media Library call in microseconds. */
+    @Param("0")
+    public long backendLatencyMicros;
+
+    /** The stand-ins for the Liferay services. */
+    private LiferayStubs stubs;
+
+    /** The CMIS loader of the iteration. */
+    private CMISFreemarkerTemplateLoader cmisLoader;
+
+    /** The Liferay loader of the iteration. */
+    private LiferayFreemarkerTemplateLoader liferayLoader;
+
+    /** The FreeMarker configuration of the iteration. */
+    private Configuration configuration;
+
+    /**
+     * Creates the stand-ins for the Liferay services.
+     */
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        stubs = new LiferayStubs();
+        stubs.install();
+        stubs.setLatencyMicros(backendLatencyMicros);
+    }
+
+    /**
+     * Creates new loaders and a new configuration.
+     * 
+     * @throws Exception
+     *             if the loaders or the configuration could not be created
+     */
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws Exception {
+        stubs.clearKeyPool();
+        cmisLoader = BenchmarkLoaders.createCMISLoader(false);
+        liferayLoader = BenchmarkLoaders.createLiferayLoader(false);
+        configuration = BenchmarkLoaders.createConfiguration(5, cmisLoader, liferayLoader);
+    }
+
+    /**
+     * Stops the loaders of the iteration.
+     */
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        cmisLoader.destroy();
+        liferayLoader.destroy();
+    }
+
+    /**
+     * @return the number of characters read
+     * @throws IOException
+     *             if the lookup or read failed
+     */
+    @Benchmark
+    public int cmisFindAndReadHit() throws IOException {
+        return BenchmarkLoaders.read(cmisLoader, cmisLoader.findTemplateSource(BenchmarkTemplates.HIT));
+    }
+
+    /**
+     * @return <code>null</code>
+     * @throws IOException
+     *             if the lookup failed
+     */
+    @Benchmark
+    public Object cmisFindLocalizedMiss() throws IOException {
+        return cmisLoader.findTemplateSource(BenchmarkTemplates.LOCALIZED_MISS);
+    }
+
+    /**
+     * @param thread
+     *            the service context of the benchmark thread
+     * @return the number of characters read
+     * @throws IOException
+     *             if the lookup or read failed
+     */
+    @Benchmark
+    public int liferayFindAndReadHit(final LiferayThreadState thread) throws IOException {
+        return BenchmarkLoaders.read(liferayLoader, liferayLoader.findTemplateSource(BenchmarkTemplates.HIT));
+    }
+
+    /**
+     * @param thread
+     *            the service context of the benchmark thread
+     * @return <code>null</code>
+     * @throws IOException
+     *             if the lookup failed
+     */
+    @Benchmark
+    public Object liferayFindLocalizedMiss(final LiferayThreadState thread) throws IOException {
+        return liferayLoader.findTemplateSource(BenchmarkTemplates.LOCALIZED_MISS);
+    }
+
+    /**
+     * @param thread
+     *            the service context of the benchmark thread
+     * @return the length of the output
+     * @throws IOException
+     *             if the template could not be loaded
+     * @throws TemplateException
+     *             if the template could not be rendered
+     */
+    @Benchmark
+    public int render(final LiferayThreadState thread) throws IOException, TemplateException {
+        StringWriter out = new StringWriter();
+        configuration.getTemplate(BenchmarkTemplates.HIT, new Locale("sv", "SE")).process(new HashMap<String, Object>(), out);
+        return out.getBuffer().length();
+    }
+}
@@ -0,0 +1,99 @@
+package com.monator.freemarker.benchmark;
+
+import org.apache.chemistry.opencmis.client.bindings.spi.BindingSession;
+import org.apache.chemistry.opencmis.client.bindings.spi.local.CmisLocalSpi;
+import org.apache.chemistry.opencmis.commons.spi.AclService;
+import org.apache.chemistry.opencmis.commons.spi.DiscoveryService;
+import org.apache.chemistry.opencmis.commons.spi.MultiFilingService;
+import org.apache.chemistry.opencmis.commons.spi.NavigationService;
+import org.apache.chemistry.opencmis.commons.spi.ObjectService;
+import org.apache.chemistry.opencmis.commons.spi.PolicyService;
+import org.apache.chemistry.opencmis.commons.spi.RelationshipService;
+import org.apache.chemistry.opencmis.commons.spi.RepositoryService;
+import org.apache.chemistry.opencmis.commons.spi.VersioningService;
+
+/**
+ * The local binding with every service call counted by the {@link RoundTripCounter}. Counting at the binding rather than at the
+ * {@link com.monator.freemarker.service.CMISConnection} includes the calls the OpenCMIS session makes on its own, like reading a
+ * document's content stream, and leaves out the lookups the session serves from its cache.
+ * 
+ * Used with <code>repository.binding=custom</code> and this class name as <code>repository.url</code>, the service factory of the local
+ * binding is then set with the session parameter <code>org.apache.chemistry.opencmis.binding.local.classname</code>.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+public class CountingCmisSpi extends CmisLocalSpi {
+
+    /**
+     * Creates the binding for a session, called by OpenCMIS.
+     * 
+     * @param session
+     *            the binding session
+     */
+    public CountingCmisSpi(final BindingSession session) {
+        super(session);
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.chemistry.opencmis.client.bindings.spi.local.CmisLocalSpi#getRepositoryService()
+     */
+    public RepositoryService getRepositoryService() {
+        return RoundTripCounter.wrap(RepositoryService.class, super.getRepositoryService());
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.chemistry.opencmis.client.bindings.spi.local.CmisLocalSpi#getNavigationService()
+     */
+    public NavigationService getNavigationService() {
+        return RoundTripCounter.wrap(NavigationService.class, super.getNavigationService());
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.chemistry.opencmis.client.bindings.spi.local.CmisLocalSpi#getObjectService()
+     */
+    public ObjectService getObjectService() {
+        return RoundTripCounter.wrap(ObjectService.class, super.getObjectService());
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.chemistry.opencmis.client.bindings.spi.local.CmisLocalSpi#getVersioningService()
+     */
+    public VersioningService getVersioningService() {
+        return RoundTripCounter.wrap(VersioningService.class, super.getVersioningService());
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.chemistry.opencmis.client.bindings.spi.local.CmisLocalSpi#getRelationshipService()
+     */
+    public RelationshipService getRelationshipService() {
+        return RoundTripCounter.wrap(RelationshipService.class, super.getRelationshipService());
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.chemistry.opencmis.client.bindings.spi.local.CmisLocalSpi#getDiscoveryService()
+     */
+    public DiscoveryService getDiscoveryService() {
+        return RoundTripCounter.wrap(DiscoveryService.class, super.getDiscoveryService());
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.chemistry.opencmis.client.bindings.spi.local.CmisLocalSpi#getMultiFilingService()
+     */
+    public MultiFilingService getMultiFilingService() {
+        return RoundTripCounter.wrap(MultiFilingService.class, super.getMultiFilingService());
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.chemistry.opencmis.client.bindings.spi.local.CmisLocalSpi#getAclService()
+     */
+    public AclService getAclService() {
+        return RoundTripCounter.wrap(AclService.class, super.getAclService());
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.chemistry.opencmis.client.bindings.spi.local.CmisLocalSpi#getPolicyService()
+     */
+    public PolicyService getPolicyService() {
+        return RoundTripCounter.wrap(PolicyService.class, super.getPolicyService());
+    }
+}
@@ -0,0 +1,140 @@
+package com.monator.freemarker.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.chemistry.opencmis.commons.SessionParameter;
+
+import com.monator.freemarker.service.CMISConnection;
+import com.monator.freemarker.service.CMISConnectionFactory;
+
+/**
+ * The OpenCMIS in-memory repository the CMIS loaders of the benchmarks connect to, through the local binding configured in the
+ * benchmarks' <code>freemarker.properties</code>. The repository lives as long as the JVM and is filled with the
+ * {@link BenchmarkTemplates} on first use.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+public final class InMemoryCMISRepository {
+
+    /** Time in milliseconds to wait for the connection. */
+    private static final long CONNECT_TIMEOUT = 30000;
+
+    /** The connection factory shared by the loaders of the benchmarks, <code>null</code> until first used. */
+    private static CMISConnectionFactory connectionFactory;
+
+    /**
+     * Hidden constructor.
+     */
+    private InMemoryCMISRepository() {
+    }
+
+    /**
+     * Returns the connection factory of the repository, connecting and adding the templates on first use.
+     * 
+     * @return the connection factory
+     * @throws InterruptedException
+     *             if interrupted while waiting for the connection
+     */
+    public static synchronized CMISConnectionFactory getConnectionFactory() throws InterruptedException {
+        if (connectionFactory == null) {
+            connectionFactory = connect(new CMISConnectionFactory());
+        }
+        return connectionFactory;
+    }
+
+    /**
+     * Connects a factory to the repository and adds the templates that are missing.
+     * 
+     * @param factory
+     *            the connection factory, not started yet
+     * @return the connected factory
+     * @throws InterruptedException
+     *             if interrupted while waiting for the connection
+     */
+    static CMISConnectionFactory connect(final CMISConnectionFactory factory) throws InterruptedException {
+        factory.start();
+        addTemplates(awaitConnection(factory));
+        return factory;
+    }
+
+    /**
+     * Returns the settings of the benchmarks' <code>freemarker.properties</code>, changed to connect through the
+     * {@link CountingCmisSpi}, so that the calls made to the repository are counted by the {@link RoundTripCounter}.
+     * 
+     * @return the settings
+     * @throws IOException
+     *             if the settings could not be read
+     */
+    static Properties getCountingSettings() throws IOException {
+        Properties settings = new Properties();
+        InputStream is = InMemoryCMISRepository.class.getClassLoader().getResourceAsStream("freemarker.properties");
+        try {
+            settings.load(is);
+        } finally {
+            is.close();
+        }
+        settings.setProperty("repository.session.parameter." + SessionParameter.LOCAL_FACTORY, settings.getProperty("repository.url"));
+        settings.setProperty("repository.url", CountingCmisSpi.class.getName());
+        settings.setProperty("repository.binding", "custom");
+        return settings;
+    }
+
+    /**
+     * Waits until the factory has connected to the repository.
+     * 
+     * @param factory
+     *            the connection factory
+     * @return the connection
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    static CMISConnection awaitConnection(final CMISConnectionFactory factory) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        CMISConnection con = factory.getConnection();
+        while (con == null) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Could not connect to the in-memory repository within " + CONNECT_TIMEOUT + " ms");
+            }
+            Thread.sleep(10);
+            con = factory.getConnection();
+        }
+        return con;
+    }
+
+    /**
+     * Adds the templates that are missing in the repository.
+     * 
+     * @param con
+     *            the connection to the repository
+     */
+    private static void addTemplates(final CMISConnection con) {
+        String folderPath = "/" + BenchmarkTemplates.FOLDER_PATH;
+        if (con.getFolderByPath(folderPath) == null) {
+            con.createFolderStructure(BenchmarkTemplates.FOLDER_PATH);
+        }
+        for (Map.Entry<String, String> template : BenchmarkTemplates.getTemplates().entrySet()) {
+            if (con.getTemplate(folderPath + "/" + template.getKey()) == null) {
+                con.createDocumentByFolderPath(folderPath, new ByteArrayInputStream(toBytes(template.getValue())), "text/plain",
+                        template.getKey());
+            }
+        }
+    }
+
+    /**
+     * @param content
+     *            the content of a template
+     * @return the content encoded in UTF-8
+     */
+    private static byte[] toBytes(final String content) {
+        try {
+            return content.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
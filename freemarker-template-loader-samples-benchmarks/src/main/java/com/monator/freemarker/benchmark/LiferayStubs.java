@@ -0,0 +1,446 @@
+package com.monator.freemarker.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.LockSupport;
+
+import com.liferay.portal.kernel.cache.MultiVMKeyPool;
+import com.liferay.portal.kernel.cache.MultiVMKeyPoolUtil;
+import com.liferay.portal.model.CompanyConstants;
+import com.liferay.portal.model.Group;
+import com.liferay.portal.service.GroupLocalService;
+import com.liferay.portal.service.GroupLocalServiceUtil;
+import com.liferay.portal.service.ServiceContext;
+import com.liferay.portlet.documentlibrary.NoSuchFileEntryException;
+import com.liferay.portlet.documentlibrary.NoSuchFolderException;
+import com.liferay.portlet.documentlibrary.model.DLFileEntry;
+import com.liferay.portlet.documentlibrary.model.DLFolder;
+import com.liferay.portlet.documentlibrary.service.DLFileEntryLocalService;
+import com.liferay.portlet.documentlibrary.service.DLFileEntryLocalServiceUtil;
+import com.liferay.portlet.documentlibrary.service.DLFolderLocalService;
+import com.liferay.portlet.documentlibrary.service.DLFolderLocalServiceUtil;
+
+/**
+ * Stand-ins for the Liferay services the {@link com.monator.freemarker.service.LiferayFreemarkerTemplateLoader} calls, so that it can
+ * run outside the portal: the multi VM key pool and the Site, folder and file entry services of the Document and Media Library. The
+ * services are dynamic proxies answering the calls the loader makes from an in-memory Site holding the {@link BenchmarkTemplates}, and
+ * are installed in the static service utilities the loader uses.
+ * 
+ * Each service call can be given a latency, so that the loader can be measured against a Document and Media Library as slow as the one
+ * in production.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+public final class LiferayStubs {
+
+    /** Id of the company the benchmarks run in. */
+    public static final long COMPANY_ID = 10154;
+
+    /** Id of the user the benchmarks run as. */
+    public static final long USER_ID = 10158;
+
+    /** Name of the Site holding the templates. */
+    public static final String SITE_NAME = "Guest";
+
+    /** Id of the Site holding the templates. */
+    private static final long GROUP_ID = 10180;
+
+    /** First id of the template folders. */
+    private static final long FIRST_FOLDER_ID = 20000;
+
+    /** First id of the template file entries. */
+    private static final long FIRST_FILE_ENTRY_ID = 30000;
+
+    /** The entries of the multi VM key pool by cache name and key. */
+    private final ConcurrentMap<String, Object> keyPool = new ConcurrentHashMap<String, Object>();
+
+    /** The folders by parent folderId and name. */
+    private final Map<String, Object> folders = new ConcurrentHashMap<String, Object>();
+
+    /** The file entries by folderId and title. */
+    private final Map<String, Object> fileEntries = new ConcurrentHashMap<String, Object>();
+
+    /** Id of the template folder. */
+    private final long templateFolderId;
+
+    /** Latency of each service call in nanoseconds. */
+    private volatile long latencyNanos;
+
+    /**
+     * Creates the Site with the template folder and the templates.
+     */
+    public LiferayStubs() {
+        long folderId = CompanyConstants.SYSTEM;
+        long nextFolderId = FIRST_FOLDER_ID;
+        for (String name : BenchmarkTemplates.FOLDER_PATH.split("/")) {
+            long parentFolderId = folderId;
+            folderId = ++nextFolderId;
+            folders.put(parentFolderId + "/" + name, proxy(DLFolder.class, new FolderHandler(folderId, parentFolderId, name)));
+        }
+        templateFolderId = folderId;
+
+        long fileEntryId = FIRST_FILE_ENTRY_ID;
+        Date modifiedDate = new Date();
+        for (Map.Entry<String, String> template : BenchmarkTemplates.getTemplates().entrySet()) {
+            fileEntries.put(templateFolderId + "/" + template.getKey(), proxy(DLFileEntry.class, new FileEntryHandler(++fileEntryId,
+                    templateFolderId, template.getKey(), toBytes(template.getValue()), modifiedDate)));
+        }
+    }
+
+    /**
+     * Installs the services in Liferay's static service utilities, replacing the services of earlier stubs.
+     */
+    public void install() {
+        new MultiVMKeyPoolUtil().setMultiVMKeyPool(proxy(MultiVMKeyPool.class, new KeyPoolHandler()));
+        new GroupLocalServiceUtil().setService(proxy(GroupLocalService.class, new GroupServiceHandler()));
+        new DLFolderLocalServiceUtil().setService(proxy(DLFolderLocalService.class, new FolderServiceHandler()));
+        new DLFileEntryLocalServiceUtil().setService(proxy(DLFileEntryLocalService.class, new FileEntryServiceHandler()));
+    }
+
+    /**
+     * Sets the latency of each Site, folder and file entry service call.
+     * 
+     * @param latencyMicros
+     *            the latency in microseconds
+     */
+    public void setLatencyMicros(final long latencyMicros) {
+        this.latencyNanos = latencyMicros * 1000;
+    }
+
+    /**
+     * Empties the multi VM key pool, e.g. to measure the loader with cold caches.
+     */
+    public void clearKeyPool() {
+        keyPool.clear();
+    }
+
+    /**
+     * @return a service context for the company, Site and user of the benchmarks
+     */
+    public static ServiceContext createServiceContext() {
+        ServiceContext serviceContext = new ServiceContext();
+        serviceContext.setCompanyId(COMPANY_ID);
+        serviceContext.setScopeGroupId(GROUP_ID);
+        serviceContext.setUserId(USER_ID);
+        return serviceContext;
+    }
+
+    /**
+     * Waits for the latency of a service call.
+     */
+    private void awaitLatency() {
+        long latency = latencyNanos;
+        if (latency <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + latency;
+        for (long left = latency; left > 0; left = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+        }
+    }
+
+    /**
+     * @param <T>
+     *            the type of the proxy
+     * @param type
+     *            the interface the proxy implements
+     * @param handler
+     *            the handler answering the calls
+     * @return the proxy
+     */
+    private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(LiferayStubs.class.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    /**
+     * @param content
+     *            the content of a template
+     * @return the content encoded in UTF-8
+     */
+    private static byte[] toBytes(final String content) {
+        try {
+            return content.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Base class of the handlers, answering the methods of {@link Object} and failing on any method the loader isn't expected to call.
+     */
+    private abstract static class StubHandler implements InvocationHandler {
+
+        /* (non-Javadoc)
+         * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+         */
+        public final Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            String name = method.getName();
+            Object[] arguments = args != null ? args : new Object[0];
+            if (name.equals("equals") && arguments.length == 1) {
+                return Boolean.valueOf(proxy == arguments[0]);
+            } else if (name.equals("hashCode") && arguments.length == 0) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            } else if (name.equals("toString") && arguments.length == 0) {
+                return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+            }
+            return answer(name, arguments);
+        }
+
+        /**
+         * Answers a call.
+         * 
+         * @param name
+         *            the name of the called method
+         * @param args
+         *            the arguments of the call
+         * @return the result of the call
+         * @throws Exception
+         *             the exception the service would throw
+         */
+        protected abstract Object answer(String name, Object[] args) throws Exception;
+
+        /**
+         * @param name
+         *            the name of the called method
+         * @return the exception to throw for a method the stub doesn't answer
+         */
+        protected final UnsupportedOperationException unsupported(final String name) {
+            return new UnsupportedOperationException(getClass().getSimpleName() + " doesn't answer " + name);
+        }
+    }
+
+    /**
+     * Answers the multi VM key pool calls from a map.
+     */
+    private final class KeyPoolHandler extends StubHandler {
+
+        /* (non-Javadoc)
+         * @see com.monator.freemarker.benchmark.LiferayStubs.StubHandler#answer(java.lang.String, java.lang.Object[])
+         */
+        protected Object answer(final String name, final Object[] args) {
+            if (name.equals("get") && args.length == 2) {
+                return keyPool.get(args[0] + "#" + args[1]);
+            } else if (name.equals("put") && args.length == 3) {
+                keyPool.put(args[0] + "#" + args[1], args[2]);
+                return null;
+            } else if (name.equals("remove") && args.length == 2) {
+                keyPool.remove(args[0] + "#" + args[1]);
+                return null;
+            } else if (name.equals("clear")) {
+                keyPool.clear();
+                return null;
+            }
+            throw unsupported(name);
+        }
+    }
+
+    /**
+     * Answers the Site lookups of the loader.
+     */
+    private final class GroupServiceHandler extends StubHandler {
+
+        /** The Site holding the templates. */
+        private final Group group = proxy(Group.class, new StubHandler() {
+            protected Object answer(final String name, final Object[] args) {
+                if (name.equals("getGroupId")) {
+                    return Long.valueOf(GROUP_ID);
+                } else if (name.equals("getName")) {
+                    return SITE_NAME;
+                }
+                throw unsupported(name);
+            }
+        });
+
+        /* (non-Javadoc)
+         * @see com.monator.freemarker.benchmark.LiferayStubs.StubHandler#answer(java.lang.String, java.lang.Object[])
+         */
+        protected Object answer(final String name, final Object[] args) {
+            awaitLatency();
+            if (name.equals("fetchGroup") && args.length == 2) {
+                return SITE_NAME.equals(args[1]) ? group : null;
+            }
+            throw unsupported(name);
+        }
+    }
+
+    /**
+     * Answers the folder lookups of the loader.
+     */
+    private final class FolderServiceHandler extends StubHandler {
+
+        /* (non-Javadoc)
+         * @see com.monator.freemarker.benchmark.LiferayStubs.StubHandler#answer(java.lang.String, java.lang.Object[])
+         */
+        protected Object answer(final String name, final Object[] args) throws Exception {
+            awaitLatency();
+            if (name.equals("getFolder") && args.length == 3) {
+                Object folder = folders.get(args[1] + "/" + args[2]);
+                if (folder == null) {
+                    throw new NoSuchFolderException("No folder " + args[2] + " in folder " + args[1]);
+                }
+                return folder;
+            } else if ((name.equals("getFolder") || name.equals("fetchDLFolder")) && args.length == 1) {
+                for (Object folder : folders.values()) {
+                    if (((DLFolder) folder).getFolderId() == ((Long) args[0]).longValue()) {
+                        return folder;
+                    }
+                }
+                if (name.equals("getFolder")) {
+                    throw new NoSuchFolderException("No folder " + args[0]);
+                }
+                return null;
+            }
+            throw unsupported(name);
+        }
+    }
+
+    /**
+     * Answers the file entry lookups and listings of the loader.
+     */
+    private final class FileEntryServiceHandler extends StubHandler {
+
+        /* (non-Javadoc)
+         * @see com.monator.freemarker.benchmark.LiferayStubs.StubHandler#answer(java.lang.String, java.lang.Object[])
+         */
+        protected Object answer(final String name, final Object[] args) throws Exception {
+            awaitLatency();
+            if (name.equals("getFileEntry") && args.length == 3) {
+                Object fileEntry = fileEntries.get(args[1] + "/" + args[2]);
+                if (fileEntry == null) {
+                    throw new NoSuchFileEntryException("No file entry " + args[2] + " in folder " + args[1]);
+                }
+                return fileEntry;
+            } else if (name.equals("getFileEntries") && args.length == 2) {
+                List<Object> listed = new ArrayList<Object>();
+                String prefix = args[1] + "/";
+                for (Map.Entry<String, Object> fileEntry : fileEntries.entrySet()) {
+                    if (fileEntry.getKey().startsWith(prefix)) {
+                        listed.add(fileEntry.getValue());
+                    }
+                }
+                return listed;
+            }
+            throw unsupported(name);
+        }
+    }
+
+    /**
+     * Answers the calls on a folder.
+     */
+    private static final class FolderHandler extends StubHandler {
+
+        /** Id of the folder. */
+        private final long folderId;
+
+        /** Id of the parent folder. */
+        private final long parentFolderId;
+
+        /** Name of the folder. */
+        private final String name;
+
+        /**
+         * @param folderId
+         *            id of the folder
+         * @param parentFolderId
+         *            id of the parent folder
+         * @param name
+         *            name of the folder
+         */
+        private FolderHandler(final long folderId, final long parentFolderId, final String name) {
+            this.folderId = folderId;
+            this.parentFolderId = parentFolderId;
+            this.name = name;
+        }
+
+        /* (non-Javadoc)
+         * @see com.monator.freemarker.benchmark.LiferayStubs.StubHandler#answer(java.lang.String, java.lang.Object[])
+         */
+        protected Object answer(final String method, final Object[] args) {
+            if (method.equals("getFolderId") || method.equals("getPrimaryKey")) {
+                return Long.valueOf(folderId);
+            } else if (method.equals("getParentFolderId")) {
+                return Long.valueOf(parentFolderId);
+            } else if (method.equals("getGroupId")) {
+                return Long.valueOf(GROUP_ID);
+            } else if (method.equals("getName")) {
+                return name;
+            }
+            throw unsupported(method);
+        }
+    }
+
+    /**
+     * Answers the calls on a file entry.
+     */
+    private static final class FileEntryHandler extends StubHandler {
+
+        /** Id of the file entry. */
+        private final long fileEntryId;
+
+        /** Id of the folder of the file entry. */
+        private final long folderId;
+
+        /** Title of the file entry. */
+        private final String title;
+
+        /** Content of the file entry. */
+        private final byte[] content;
+
+        /** Modified date of the file entry. */
+        private final Date modifiedDate;
+
+        /**
+         * @param fileEntryId
+         *            id of the file entry
+         * @param folderId
+         *            id of the folder of the file entry
+         * @param title
+         *            title of the file entry
+         * @param content
+         *            content of the file entry
+         * @param modifiedDate
+         *            modified date of the file entry
+         */
+        private FileEntryHandler(final long fileEntryId, final long folderId, final String title, final byte[] content,
+                final Date modifiedDate) {
+            this.fileEntryId = fileEntryId;
+            this.folderId = folderId;
+            this.title = title;
+            this.content = content;
+            this.modifiedDate = modifiedDate;
+        }
+
+        /* (non-Javadoc)
+         * @see com.monator.freemarker.benchmark.LiferayStubs.StubHandler#answer(java.lang.String, java.lang.Object[])
+         */
+        protected Object answer(final String method, final Object[] args) {
+            if (method.equals("getFileEntryId") || method.equals("getPrimaryKey")) {
+                return Long.valueOf(fileEntryId);
+            } else if (method.equals("getFolderId")) {
+                return Long.valueOf(folderId);
+            } else if (method.equals("getGroupId")) {
+                return Long.valueOf(GROUP_ID);
+            } else if (method.equals("getTitle") || method.equals("getName")) {
+                return title;
+            } else if (method.equals("getVersion")) {
+                return "1.0";
+            } else if (method.equals("getModifiedDate")) {
+                return modifiedDate;
+            } else if (method.equals("getContentStream")) {
+                return new ByteArrayInputStream(content);
+            } else if (method.equals("getSize")) {
+                return Long.valueOf(content.length);
+            }
+            throw unsupported(method);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.monator.freemarker.benchmark;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.liferay.portal.service.ServiceContextThreadLocal;
+
+/**
+ * Gives each benchmark thread the service context of the benchmark company and Site, as the portal does for render threads. Benchmarks
+ * using the Liferay loader take this state as a parameter.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+@State(Scope.Thread)
+public class LiferayThreadState {
+
+    /**
+     * Pushes the service context for the benchmark thread.
+     */
+    @Setup(Level.Trial)
+    public void pushServiceContext() {
+        ServiceContextThreadLocal.pushServiceContext(LiferayStubs.createServiceContext());
+    }
+
+    /**
+     * Pops the service context of the benchmark thread.
+     */
+    @TearDown(Level.Trial)
+    public void popServiceContext() {
+        ServiceContextThreadLocal.popServiceContext();
+    }
+}
@@ -0,0 +1,142 @@
+package com.monator.freemarker.benchmark;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.monator.freemarker.service.CMISFreemarkerTemplateLoader;
+import com.monator.freemarker.service.LiferayFreemarkerTemplateLoader;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+
+/**
+ * Measures full FreeMarker renders through the template loader chain of the portlet, the CMIS loader followed by the Liferay loader
+ * behind the parallel composite loader, with the shared parsed template cache. The locale decides which localized variants FreeMarker
+ * asks the loaders for before the template itself. With an update delay of zero FreeMarker asks the loaders for changes on every
+ * render, otherwise renders are served from its template cache.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+    /** The locale of the renders. */
+    @Param({"en", "sv_SE"})
+    public String locale;
+
+    /** Seconds FreeMarker waits before checking a cached template for changes again. */
+    @Param({"5", "0"})
+    public int updateDelaySeconds;
+
+    /** Latency of each Document and Media Library call in microseconds. */
+    @Param("0")
+    public long backendLatencyMicros;
+
+    /** The CMIS loader. */
+    private CMISFreemarkerTemplateLoader cmisLoader;
+
+    /** The Liferay loader. */
+    private LiferayFreemarkerTemplateLoader liferayLoader;
+
+    /** The FreeMarker configuration. */
+    private Configuration configuration;
+
+    /** The locale of the renders. */
+    private Locale renderLocale;
+
+    /** The data model of the renders. */
+    private final Map<String, Object> model = new HashMap<String, Object>();
+
+    /**
+     * Creates the loaders and the configuration and renders once.
+     * 
+     * @throws Exception
+     *             if the configuration could not be created or the render failed
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        LiferayStubs stubs = new LiferayStubs();
+        stubs.install();
+        stubs.setLatencyMicros(backendLatencyMicros);
+        cmisLoader = BenchmarkLoaders.createCMISLoader(true);
+        liferayLoader = BenchmarkLoaders.createLiferayLoader(true);
+        configuration = BenchmarkLoaders.createConfiguration(updateDelaySeconds, cmisLoader, liferayLoader);
+        String[] localeParts = locale.split("_");
+        renderLocale = localeParts.length > 1 ? new Locale(localeParts[0], localeParts[1]) : new Locale(localeParts[0]);
+
+        LiferayThreadState thread = new LiferayThreadState();
+        thread.pushServiceContext();
+        try {
+            render(thread);
+        } finally {
+            thread.popServiceContext();
+        }
+    }
+
+    /**
+     * Stops the loaders.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cmisLoader.destroy();
+        liferayLoader.destroy();
+    }
+
+    /**
+     * @param thread
+     *            the service context of the benchmark thread
+     * @return the length of the output
+     * @throws IOException
+     *             if the template could not be loaded
+     * @throws TemplateException
+     *             if the template could not be rendered
+     */
+    @Benchmark
+    public int render(final LiferayThreadState thread) throws IOException, TemplateException {
+        Template template = configuration.getTemplate(BenchmarkTemplates.HIT, renderLocale);
+        StringWriter out = new StringWriter();
+        template.process(model, out);
+        return out.getBuffer().length();
+    }
+
+    /**
+     * @param thread
+     *            the service context of the benchmark thread
+     * @return <code>null</code>
+     * @throws IOException
+     *             if the lookup failed
+     */
+    @Benchmark
+    public Template renderMissing(final LiferayThreadState thread) throws IOException {
+        try {
+            return configuration.getTemplate(BenchmarkTemplates.MISS, renderLocale);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.monator.freemarker.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.ServletContext;
+
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.config.PropertyPlaceholderConfigurer;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.support.XmlWebApplicationContext;
+import org.springframework.web.servlet.View;
+import org.springframework.web.servlet.ViewResolver;
+
+import com.liferay.portal.service.ServiceContextThreadLocal;
+import com.monator.freemarker.metrics.OperationMetrics;
+import com.monator.freemarker.metrics.TemplateMetrics;
+
+/**
+ * Renders a view of the portlet from a number of concurrent threads and reports the throughput, the render latency and the calls made
+ * to the backends, to see how the loaders and the shared CMIS connection scale with cores and concurrency. Unlike the JMH benchmarks,
+ * which measure the loaders one call at a time, the load test boots the portlet's <code>applicationContext.xml</code> as it is and
+ * renders through its view resolver, with all caches, background threads and pools running.
+ * 
+ * The portal is replaced by the {@link ServletStubs} and the {@link LiferayStubs}, the CMIS repository by the in-memory repository
+ * connected through the {@link CountingCmisSpi}. Both backends are given a latency per call. The settings are those of the portlet's
+ * <code>freemarker.properties</code>, with the repository settings of the benchmarks and without creating Sites and folders or
+ * precompiling on startup, which the stand-ins don't support. Any setting can be overridden with a system property of the same name.
+ * 
+ * Each thread count is run for the same time after a warm-up at the highest thread count. The backend calls are taken from the
+ * {@link TemplateMetrics} of the portlet and the {@link RoundTripCounter}, which are reset before each run.
+ * 
+ * Usage: <code>java [-Dloadtest.threads=1,4,16] [-Dloadtest.seconds=30] [-Dloadtest.warmup.seconds=10]
+ * [-Dloadtest.liferay.latency.micros=1000] [-Dloadtest.cmis.latency.micros=5000] [-Dloadtest.view=view]
+ * [-D&lt;setting&gt;=&lt;value&gt;] -cp target/benchmarks.jar com.monator.freemarker.benchmark.RenderLoadTest</code>
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+public final class RenderLoadTest {
+
+    /** Locale of the rendering requests. */
+    private static final Locale LOCALE = Locale.US;
+
+    /** The booted application context of the portlet. */
+    private final XmlWebApplicationContext context;
+
+    /** The view resolver of the portlet. */
+    private final ViewResolver viewResolver;
+
+    /** The metrics of the portlet's loaders and backends. */
+    private final TemplateMetrics templateMetrics;
+
+    /** Name of the rendered view. */
+    private final String viewName;
+
+    /**
+     * @param context
+     *            the booted application context of the portlet
+     * @param viewName
+     *            name of the rendered view
+     */
+    private RenderLoadTest(final XmlWebApplicationContext context, final String viewName) {
+        this.context = context;
+        this.viewName = viewName;
+        this.viewResolver = context.getBean("viewResolver", ViewResolver.class);
+        this.templateMetrics = context.getBean("templateMetrics", TemplateMetrics.class);
+    }
+
+    /**
+     * @param args
+     *            not used
+     * @throws Exception
+     *             if the portlet could not be booted
+     */
+    public static void main(final String[] args) throws Exception {
+        LiferayStubs liferayStubs = new LiferayStubs();
+        liferayStubs.install();
+        liferayStubs.setLatencyMicros(Long.getLong("loadtest.liferay.latency.micros", 1000).longValue());
+        RoundTripCounter.setLatencyMicros(Long.getLong("loadtest.cmis.latency.micros", 5000).longValue());
+        InMemoryCMISRepository.getConnectionFactory();
+
+        RenderLoadTest loadTest = new RenderLoadTest(boot(), System.getProperty("loadtest.view", "view"));
+        try {
+            List<Integer> threadCounts = new ArrayList<Integer>();
+            for (String threadCount : System.getProperty("loadtest.threads", "1,4,16").split(",")) {
+                threadCounts.add(Integer.valueOf(threadCount.trim()));
+            }
+            loadTest.run(threadCounts.get(threadCounts.size() - 1).intValue(), Long.getLong("loadtest.warmup.seconds", 10).longValue());
+            for (Integer threadCount : threadCounts) {
+                loadTest.reset();
+                RenderRun run = loadTest.run(threadCount.intValue(), Long.getLong("loadtest.seconds", 30).longValue());
+                loadTest.report(run);
+            }
+        } finally {
+            loadTest.context.close();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Renders the view from a number of threads for some time.
+     * 
+     * @param threadCount
+     *            number of rendering threads
+     * @param seconds
+     *            time to render
+     * @return the finished run
+     * @throws InterruptedException
+     *             if interrupted while waiting for the threads
+     */
+    private RenderRun run(final int threadCount, final long seconds) throws InterruptedException {
+        final RenderRun run = new RenderRun(threadCount);
+        final CountDownLatch started = new CountDownLatch(1);
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        List<Thread> threads = new ArrayList<Thread>(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    ServiceContextThreadLocal.pushServiceContext(LiferayStubs.createServiceContext());
+                    try {
+                        started.await();
+                        while (System.nanoTime() < deadline) {
+                            render(run);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        ServiceContextThreadLocal.popServiceContext();
+                    }
+                }
+            }, "render-" + (i + 1));
+            threads.add(thread);
+            thread.start();
+        }
+        long start = System.nanoTime();
+        started.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        run.elapsedNanos = System.nanoTime() - start;
+        return run;
+    }
+
+    /**
+     * Renders the view once, the way the portlet's dispatcher does.
+     * 
+     * @param run
+     *            the run to record the render in
+     */
+    private void render(final RenderRun run) {
+        long start = run.renders.start();
+        try {
+            View view = viewResolver.resolveViewName(viewName, LOCALE);
+            view.render(new HashMap<String, Object>(), ServletStubs.createRequest(LOCALE),
+                    ServletStubs.createResponse(new StringWriter()));
+            run.renders.success(start);
+        } catch (Exception e) {
+            run.renders.failure(start);
+            run.firstError.compareAndSet(null, e);
+        }
+    }
+
+    /**
+     * Resets the backend metrics before a run.
+     */
+    private void reset() {
+        for (Map<String, OperationMetrics> operations : templateMetrics.getOperations().values()) {
+            for (OperationMetrics metrics : operations.values()) {
+                metrics.reset();
+            }
+        }
+        RoundTripCounter.reset();
+    }
+
+    /**
+     * Prints the results of a run: the renders, the calls of each loader and backend operation and the calls made to the repository.
+     * 
+     * @param run
+     *            the finished run
+     */
+    private void report(final RenderRun run) {
+        OperationMetrics renders = run.renders;
+        double seconds = run.elapsedNanos / 1e9;
+        System.out.println(String.format(Locale.ROOT,
+                "threads=%d renders=%d throughput=%.1f/s meanMs=%.2f p50Ms=%.2f p99Ms=%.2f maxMs=%.2f errors=%d", run.threadCount,
+                renders.getCalls(), renders.getCalls() / seconds, renders.getMeanMillis(), renders.getP50Millis(),
+                renders.getP99Millis(), renders.getMaxMillis(), renders.getErrors()));
+        if (run.firstError.get() != null) {
+            System.out.println("  first error: " + run.firstError.get());
+        }
+        double perRender = Math.max(1, renders.getCalls());
+        for (Map.Entry<String, Map<String, OperationMetrics>> backend : templateMetrics.getOperations().entrySet()) {
+            for (Map.Entry<String, OperationMetrics> operation : backend.getValue().entrySet()) {
+                OperationMetrics metrics = operation.getValue();
+                if (metrics.getCalls() > 0) {
+                    System.out.println(String.format(Locale.ROOT, "  %s.%s calls=%d perRender=%.3f meanMs=%.2f p99Ms=%.2f errors=%d",
+                            backend.getKey(), operation.getKey(), metrics.getCalls(), metrics.getCalls() / perRender,
+                            metrics.getMeanMillis(), metrics.getP99Millis(), metrics.getErrors()));
+                }
+            }
+        }
+        for (Map.Entry<String, Long> operation : RoundTripCounter.snapshot().entrySet()) {
+            if (operation.getValue().longValue() > 0) {
+                System.out.println(String.format(Locale.ROOT, "  repository.%s calls=%d perRender=%.3f", operation.getKey(),
+                        operation.getValue(), operation.getValue().longValue() / perRender));
+            }
+        }
+    }
+
+    /**
+     * Boots the portlet's <code>applicationContext.xml</code> in a servlet context served by the {@link ServletStubs}.
+     * 
+     * @return the booted context
+     * @throws IOException
+     *             if the settings could not be read or the temp directory could not be created
+     */
+    private static XmlWebApplicationContext boot() throws IOException {
+        File tempDir = File.createTempFile("render-load-test", "");
+        if (!tempDir.delete() || !tempDir.mkdir()) {
+            throw new IOException("Could not create the temp directory " + tempDir);
+        }
+        ServletContext servletContext = ServletStubs.createServletContext(tempDir);
+
+        PropertyPlaceholderConfigurer placeholderConfigurer = new PropertyPlaceholderConfigurer();
+        placeholderConfigurer.setProperties(getSettings());
+        placeholderConfigurer.setSystemPropertiesMode(PropertyPlaceholderConfigurer.SYSTEM_PROPERTIES_MODE_OVERRIDE);
+        placeholderConfigurer.setIgnoreUnresolvablePlaceholders(true);
+        final Properties cmisSettings = InMemoryCMISRepository.getCountingSettings();
+
+        XmlWebApplicationContext context = new XmlWebApplicationContext();
+        context.setServletContext(servletContext);
+        context.setConfigLocation("/WEB-INF/applicationContext.xml");
+        context.addBeanFactoryPostProcessor(placeholderConfigurer);
+        context.addBeanFactoryPostProcessor(new BeanFactoryPostProcessor() {
+            public void postProcessBeanFactory(final ConfigurableListableBeanFactory beanFactory) {
+                // Connect the shared connection factory through the counting binding
+                beanFactory.getBeanDefinition("cmisConnectionFactory").getConstructorArgumentValues().addIndexedArgumentValue(0,
+                        cmisSettings);
+            }
+        });
+        context.refresh();
+        servletContext.setAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE, context);
+        return context;
+    }
+
+    /**
+     * Returns the settings of the portlet's <code>freemarker.properties</code>, copied to the classpath under <code>portlet/</code> by the
+     * build, with the settings of the benchmarks' <code>freemarker.properties</code> and those the stand-ins need.
+     * 
+     * @return the settings
+     * @throws IOException
+     *             if the settings could not be read
+     */
+    private static Properties getSettings() throws IOException {
+        Properties settings = new Properties();
+        for (String path : new String[] {"portlet/freemarker.properties", "freemarker.properties"}) {
+            InputStream is = RenderLoadTest.class.getClassLoader().getResourceAsStream(path);
+            try {
+                settings.load(is);
+            } finally {
+                is.close();
+            }
+        }
+        settings.setProperty("create.site.if.not.exists", "false");
+        settings.setProperty("create.folder.if.not.exists", "false");
+        settings.setProperty("template.precompile.on.startup", "false");
+        return settings;
+    }
+
+    /**
+     * The renders of one run.
+     */
+    private static final class RenderRun {
+
+        /** Number of rendering threads. */
+        private final int threadCount;
+
+        /** Calls, errors and latency of the renders. */
+        private final OperationMetrics renders = new OperationMetrics();
+
+        /** The first failed render, <code>null</code> if none failed. */
+        private final AtomicReference<Exception> firstError = new AtomicReference<Exception>();
+
+        /** Time the run took in nanoseconds. */
+        private long elapsedNanos;
+
+        /**
+         * @param threadCount
+         *            number of rendering threads
+         */
+        private RenderRun(final int threadCount) {
+            this.threadCount = threadCount;
+        }
+    }
+}
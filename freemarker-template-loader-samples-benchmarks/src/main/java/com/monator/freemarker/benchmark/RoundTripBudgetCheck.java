@@ -0,0 +1,208 @@
+package com.monator.freemarker.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+
+import com.monator.freemarker.service.CMISConnectionFactory;
+import com.monator.freemarker.service.CMISFreemarkerTemplateLoader;
+
+/**
+ * Checks the number of calls the CMIS loader makes to the repository for a template lookup against a budget, so that a change adding
+ * round trips is noticed before it reaches a repository across the network. The loader is connected to the in-memory repository
+ * through the {@link CountingCmisSpi}, each scenario looks up and reads one template the way FreeMarker does and fails when the calls
+ * made exceed its budget.
+ * 
+ * The loaders run with the cache settings of the portlet's <code>freemarker.properties</code>, but without stale-while-revalidate, call
+ * timeout and dependency prefetching, so that all calls are made by the checking thread within the scenario. The budgets follow the
+ * settings: with the name index, the first load also lists the folder and later misses are answered without a call.
+ * 
+ * The check runs in the <code>verify</code> phase of the build, which fails when a scenario is over budget. It can also be run with
+ * <code>java -cp target/benchmarks.jar com.monator.freemarker.benchmark.RoundTripBudgetCheck</code>, exiting with status 1 when a
+ * scenario is over budget.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+public final class RoundTripBudgetCheck {
+
+    /** First lookup and read of a template: the folder by path, the document by path and its content. */
+    private static final long FIRST_LOAD_BUDGET = 3;
+
+    /** Lookup and read of a template read before: the document by path, the folder and the content are cached. */
+    private static final long HIT_BUDGET = 1;
+
+    /** First lookup of a missing template: the folder by path and the folder listing, or the document by path without name index. */
+    private static final long COLD_MISS_BUDGET = 2;
+
+    /** Lookup of a missing template once the folder has been resolved: the document by path. */
+    private static final long MISS_BUDGET = 1;
+
+    /** Calls added to the first load and saved on each miss with the name index: the folder listing. */
+    private static final long LISTING_CALLS = 1;
+
+    /**
+     * First lookup when the folder is missing and created with the default template: the folder by path, the root and each segment of
+     * the path by path, the parent, the new folder and the created folder, the folder by path and id again, the new document, the
+     * document by path and its content.
+     */
+    private static final long FOLDER_AUTO_CREATE_BUDGET = 12;
+
+    /** Parent of the folders created by the folder auto-create scenario. */
+    private static final String AUTO_CREATE_PARENT = "Templates";
+
+    /** The factory connected through the counting binding. */
+    private final CMISConnectionFactory connectionFactory;
+
+    /** The settings of the portlet's <code>freemarker.properties</code>. */
+    private final Properties portletSettings;
+
+    /** Determines if a scenario has exceeded its budget. */
+    private boolean overBudget;
+
+    /**
+     * @param connectionFactory
+     *            the factory connected through the counting binding
+     * @param portletSettings
+     *            the settings of the portlet's <code>freemarker.properties</code>
+     */
+    private RoundTripBudgetCheck(final CMISConnectionFactory connectionFactory, final Properties portletSettings) {
+        this.connectionFactory = connectionFactory;
+        this.portletSettings = portletSettings;
+    }
+
+    /**
+     * @param args
+     *            not used
+     * @throws Exception
+     *             if the repository could not be set up or a lookup failed
+     */
+    public static void main(final String[] args) throws Exception {
+        Properties settings = InMemoryCMISRepository.getCountingSettings();
+        settings.setProperty("repository.session.pool.size", "1");
+        RoundTripBudgetCheck check = new RoundTripBudgetCheck(InMemoryCMISRepository.connect(new CMISConnectionFactory(settings)),
+                getPortletSettings());
+        check.run();
+        System.exit(check.overBudget ? 1 : 0);
+    }
+
+    /**
+     * Runs all scenarios, each with a new loader so that no cached data of an earlier scenario is used.
+     * 
+     * @throws IOException
+     *             if a lookup failed
+     */
+    private void run() throws IOException {
+        long listingCalls = getSeconds("cmis.name.index.ttl.seconds") > 0 ? LISTING_CALLS : 0;
+        CMISFreemarkerTemplateLoader loader = createLoader(BenchmarkTemplates.FOLDER_PATH, false, null);
+        try {
+            check("first load", FIRST_LOAD_BUDGET + listingCalls, loader, BenchmarkTemplates.HIT);
+            check("hit", HIT_BUDGET, loader, BenchmarkTemplates.HIT);
+            check("miss", MISS_BUDGET - listingCalls, loader, BenchmarkTemplates.MISS);
+            check("localized miss", MISS_BUDGET - listingCalls, loader, BenchmarkTemplates.LOCALIZED_MISS);
+        } finally {
+            loader.destroy();
+        }
+
+        loader = createLoader(BenchmarkTemplates.FOLDER_PATH, false, null);
+        try {
+            check("cold miss", COLD_MISS_BUDGET, loader, BenchmarkTemplates.MISS);
+        } finally {
+            loader.destroy();
+        }
+
+        Resource defaultTemplate = new ByteArrayResource("<#-- Default template -->".getBytes("UTF-8")) {
+            public String getFilename() {
+                return BenchmarkTemplates.HIT;
+            }
+        };
+        loader = createLoader(AUTO_CREATE_PARENT + "/AutoCreate" + System.currentTimeMillis(), true, defaultTemplate);
+        try {
+            check("folder auto-create", FOLDER_AUTO_CREATE_BUDGET, loader, BenchmarkTemplates.HIT);
+        } finally {
+            loader.destroy();
+        }
+    }
+
+    /**
+     * Looks up and reads a template and compares the calls made to the repository with the budget.
+     * 
+     * @param scenario
+     *            name of the scenario
+     * @param budget
+     *            maximum number of calls
+     * @param loader
+     *            the loader
+     * @param name
+     *            the name of the template
+     * @throws IOException
+     *             if the lookup failed
+     */
+    private void check(final String scenario, final long budget, final CMISFreemarkerTemplateLoader loader, final String name)
+            throws IOException {
+        Map<String, Long> before = RoundTripCounter.snapshot();
+        Object templateSource = loader.findTemplateSource(name);
+        if (templateSource != null) {
+            BenchmarkLoaders.read(loader, templateSource);
+        }
+        Map<String, Long> calls = RoundTripCounter.between(before, RoundTripCounter.snapshot());
+        long total = RoundTripCounter.total(calls);
+        boolean withinBudget = total <= budget;
+        overBudget |= !withinBudget;
+        System.out.println(String.format("%-20s %-4s %2d of %2d calls %s", scenario, withinBudget ? "OK" : "OVER", Long.valueOf(total),
+                Long.valueOf(budget), calls));
+    }
+
+    /**
+     * Creates a loader with the cache settings of the portlet, leaving out those making calls outside the checking thread.
+     * 
+     * @param folderPath
+     *            the template folder path
+     * @param createFolder
+     *            if true, the folder is created with the default template when missing
+     * @param defaultTemplate
+     *            the default template, <code>null</code> if the folder isn't created
+     * @return the initialized loader
+     */
+    private CMISFreemarkerTemplateLoader createLoader(final String folderPath, final boolean createFolder, final Resource defaultTemplate) {
+        CMISFreemarkerTemplateLoader loader = new CMISFreemarkerTemplateLoader(folderPath, createFolder, defaultTemplate);
+        loader.setConnectionFactory(connectionFactory);
+        loader.setFolderCacheTtlSeconds(getSeconds("cmis.folder.cache.ttl.seconds"));
+        loader.setNegativeCacheTtlSeconds(getSeconds("cmis.negative.cache.ttl.seconds"));
+        loader.setNameIndexTtlSeconds(getSeconds("cmis.name.index.ttl.seconds"));
+        loader.setContentCacheMaxBytes(Long.parseLong(portletSettings.getProperty("cmis.content.cache.max.bytes").trim()));
+        loader.init();
+        return loader;
+    }
+
+    /**
+     * @param key
+     *            the key of a setting in seconds
+     * @return the value of the setting in the portlet's <code>freemarker.properties</code>
+     */
+    private long getSeconds(final String key) {
+        return Long.parseLong(portletSettings.getProperty(key).trim());
+    }
+
+    /**
+     * Returns the settings of the portlet's <code>freemarker.properties</code>, copied to the classpath under <code>portlet/</code> by the
+     * build.
+     * 
+     * @return the settings
+     * @throws IOException
+     *             if the settings could not be read
+     */
+    private static Properties getPortletSettings() throws IOException {
+        Properties settings = new Properties();
+        InputStream is = RoundTripBudgetCheck.class.getClassLoader().getResourceAsStream("portlet/freemarker.properties");
+        try {
+            settings.load(is);
+        } finally {
+            is.close();
+        }
+        return settings;
+    }
+}
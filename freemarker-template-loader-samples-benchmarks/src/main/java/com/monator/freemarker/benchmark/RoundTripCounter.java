@@ -0,0 +1,162 @@
+package com.monator.freemarker.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Counts the calls made to the repository by operation, e.g. <code>ObjectService.getObjectByPath</code>. The counters are global,
+ * since the {@link CountingCmisSpi} recording them is created by OpenCMIS, and are compared by taking a {@link #snapshot()} before and
+ * after the calls of interest.
+ * 
+ * Each counted call can be given a latency, so that the loaders can be measured against a repository across the network.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+public final class RoundTripCounter {
+
+    /** Number of calls by operation. */
+    private static final ConcurrentMap<String, AtomicLong> CALLS = new ConcurrentHashMap<String, AtomicLong>();
+
+    /** Latency of each counted call in nanoseconds. */
+    private static volatile long latencyNanos;
+
+    /**
+     * Hidden constructor.
+     */
+    private RoundTripCounter() {
+    }
+
+    /**
+     * Wraps a service so that each call made to it is counted as one round trip, named after the service interface and the method.
+     * 
+     * @param <T>
+     *            the service type
+     * @param serviceInterface
+     *            the service interface
+     * @param service
+     *            the service to wrap
+     * @return the counting service
+     */
+    public static <T> T wrap(final Class<T> serviceInterface, final T service) {
+        final String prefix = serviceInterface.getSimpleName() + ".";
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if (method.getDeclaringClass() != Object.class) {
+                    count(prefix + method.getName());
+                    awaitLatency();
+                }
+                try {
+                    return method.invoke(service, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        };
+        return serviceInterface.cast(Proxy.newProxyInstance(serviceInterface.getClassLoader(), new Class<?>[] {serviceInterface},
+                handler));
+    }
+
+    /**
+     * Sets the latency of each counted call.
+     * 
+     * @param latencyMicros
+     *            the latency in microseconds
+     */
+    public static void setLatencyMicros(final long latencyMicros) {
+        latencyNanos = latencyMicros * 1000;
+    }
+
+    /**
+     * @return the number of calls made so far by operation, sorted by operation
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> calls = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> operation : CALLS.entrySet()) {
+            calls.put(operation.getKey(), Long.valueOf(operation.getValue().get()));
+        }
+        return calls;
+    }
+
+    /**
+     * Sets the number of calls of all operations to zero.
+     */
+    public static void reset() {
+        for (AtomicLong counter : CALLS.values()) {
+            counter.set(0);
+        }
+    }
+
+    /**
+     * Returns the calls made between two snapshots, leaving out operations that weren't called.
+     * 
+     * @param before
+     *            the earlier snapshot
+     * @param after
+     *            the later snapshot
+     * @return the number of calls by operation
+     */
+    public static Map<String, Long> between(final Map<String, Long> before, final Map<String, Long> after) {
+        Map<String, Long> calls = new TreeMap<String, Long>();
+        for (Map.Entry<String, Long> operation : after.entrySet()) {
+            Long earlier = before.get(operation.getKey());
+            long count = operation.getValue().longValue() - (earlier != null ? earlier.longValue() : 0);
+            if (count > 0) {
+                calls.put(operation.getKey(), Long.valueOf(count));
+            }
+        }
+        return calls;
+    }
+
+    /**
+     * @param calls
+     *            number of calls by operation
+     * @return the total number of calls
+     */
+    public static long total(final Map<String, Long> calls) {
+        long total = 0;
+        for (Long count : calls.values()) {
+            total += count.longValue();
+        }
+        return total;
+    }
+
+    /**
+     * Counts one call of an operation.
+     * 
+     * @param operation
+     *            the operation
+     */
+    private static void count(final String operation) {
+        AtomicLong counter = CALLS.get(operation);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = CALLS.putIfAbsent(operation, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * Waits for the latency of a call.
+     */
+    private static void awaitLatency() {
+        long latency = latencyNanos;
+        if (latency <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + latency;
+        for (long left = latency; left > 0; left = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+        }
+    }
+}
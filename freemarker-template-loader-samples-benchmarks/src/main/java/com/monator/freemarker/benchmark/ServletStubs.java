@@ -0,0 +1,217 @@
+package com.monator.freemarker.benchmark;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Stand-ins for the servlet container the portlet's views render in, so that the portlet's <code>applicationContext.xml</code> can be
+ * booted and its views rendered outside the portal. The servlet context serves the portlet's webapp from the classpath under
+ * <code>webapp/</code>, where the build copies the parts the load test needs.
+ * 
+ * The stand-ins are dynamic proxies keeping attributes in maps and answering the calls Spring and FreeMarker make. Other calls are
+ * answered with the default value of their return type, since the views don't depend on them.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+public final class ServletStubs {
+
+    /** Classpath prefix of the webapp resources. */
+    private static final String WEBAPP_PATH = "webapp";
+
+    /**
+     * Hidden constructor.
+     */
+    private ServletStubs() {
+    }
+
+    /**
+     * Creates a servlet context serving the portlet's webapp from the classpath.
+     * 
+     * @param tempDir
+     *            the temp directory of the webapp
+     * @return the servlet context
+     */
+    public static ServletContext createServletContext(final File tempDir) {
+        final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+        attributes.put("javax.servlet.context.tempdir", tempDir);
+        return proxy(ServletContext.class, new StubHandler(attributes) {
+            protected Object answer(final String name, final Object[] args, final Class<?> returnType) throws Exception {
+                if (name.equals("getResource")) {
+                    return ServletStubs.class.getClassLoader().getResource(WEBAPP_PATH + args[0]);
+                } else if (name.equals("getResourceAsStream")) {
+                    return ServletStubs.class.getClassLoader().getResourceAsStream(WEBAPP_PATH + args[0]);
+                } else if (name.equals("getInitParameterNames")) {
+                    return Collections.enumeration(Collections.<String>emptyList());
+                } else if (name.equals("getServletContextName")) {
+                    return "freemarker-template-loader-samples-portlet";
+                } else if (name.equals("getMajorVersion")) {
+                    return Integer.valueOf(2);
+                } else if (name.equals("getMinorVersion")) {
+                    return Integer.valueOf(4);
+                }
+                return defaultValue(returnType);
+            }
+        });
+    }
+
+    /**
+     * Creates a request without parameters or session.
+     * 
+     * @param locale
+     *            the locale of the request
+     * @return the request
+     */
+    public static HttpServletRequest createRequest(final Locale locale) {
+        return proxy(HttpServletRequest.class, new StubHandler(new ConcurrentHashMap<String, Object>()) {
+            protected Object answer(final String name, final Object[] args, final Class<?> returnType) {
+                if (name.equals("getLocale")) {
+                    return locale;
+                } else if (name.equals("getLocales")) {
+                    return Collections.enumeration(Collections.singletonList(locale));
+                } else if (name.equals("getCharacterEncoding")) {
+                    return "UTF-8";
+                } else if (name.equals("getParameterMap")) {
+                    return Collections.emptyMap();
+                } else if (name.equals("getParameterNames")) {
+                    return Collections.enumeration(Collections.<String>emptyList());
+                } else if (name.equals("getContextPath")) {
+                    return "";
+                }
+                return defaultValue(returnType);
+            }
+        });
+    }
+
+    /**
+     * Creates a response writing the rendered content to a writer.
+     * 
+     * @param writer
+     *            the writer receiving the content
+     * @return the response
+     */
+    public static HttpServletResponse createResponse(final Writer writer) {
+        final PrintWriter printWriter = new PrintWriter(writer);
+        final String[] contentType = new String[1];
+        return proxy(HttpServletResponse.class, new StubHandler(new ConcurrentHashMap<String, Object>()) {
+            protected Object answer(final String name, final Object[] args, final Class<?> returnType) {
+                if (name.equals("getWriter")) {
+                    return printWriter;
+                } else if (name.equals("getContentType")) {
+                    return contentType[0];
+                } else if (name.equals("setContentType")) {
+                    contentType[0] = (String) args[0];
+                    return null;
+                } else if (name.equals("getCharacterEncoding")) {
+                    return "UTF-8";
+                } else if (name.equals("flushBuffer")) {
+                    printWriter.flush();
+                    return null;
+                }
+                return defaultValue(returnType);
+            }
+        });
+    }
+
+    /**
+     * @param <T>
+     *            the type of the proxy
+     * @param type
+     *            the interface the proxy implements
+     * @param handler
+     *            the handler answering the calls
+     * @return the proxy
+     */
+    private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(ServletStubs.class.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    /**
+     * @param type
+     *            a return type
+     * @return the default value of the type, <code>null</code> for objects
+     */
+    private static Object defaultValue(final Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return Integer.valueOf(0);
+        } else if (type == long.class) {
+            return Long.valueOf(0);
+        }
+        return null;
+    }
+
+    /**
+     * Base class of the handlers, answering the methods of {@link Object} and the attribute methods from a map.
+     */
+    private abstract static class StubHandler implements InvocationHandler {
+
+        /** The attributes by name. */
+        private final Map<String, Object> attributes;
+
+        /**
+         * @param attributes
+         *            the attributes by name
+         */
+        private StubHandler(final Map<String, Object> attributes) {
+            this.attributes = attributes;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+         */
+        public final Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            String name = method.getName();
+            Object[] arguments = args != null ? args : new Object[0];
+            if (name.equals("equals") && arguments.length == 1) {
+                return Boolean.valueOf(proxy == arguments[0]);
+            } else if (name.equals("hashCode") && arguments.length == 0) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            } else if (name.equals("toString") && arguments.length == 0) {
+                return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+            } else if (name.equals("getAttribute")) {
+                return attributes.get(arguments[0]);
+            } else if (name.equals("setAttribute")) {
+                if (arguments[1] == null) {
+                    attributes.remove(arguments[0]);
+                } else {
+                    attributes.put((String) arguments[0], arguments[1]);
+                }
+                return null;
+            } else if (name.equals("removeAttribute")) {
+                attributes.remove(arguments[0]);
+                return null;
+            } else if (name.equals("getAttributeNames")) {
+                return Collections.enumeration(attributes.keySet());
+            }
+            return answer(name, arguments, method.getReturnType());
+        }
+
+        /**
+         * Answers a call that isn't an attribute call.
+         * 
+         * @param name
+         *            the name of the called method
+         * @param args
+         *            the arguments of the call
+         * @param returnType
+         *            the return type of the called method
+         * @return the result of the call
+         * @throws Exception
+         *             if the call failed
+         */
+        protected abstract Object answer(String name, Object[] args, Class<?> returnType) throws Exception;
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * JMH benchmarks, round trip budgets and a render load test of the Freemarker Template Loaders
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+package com.monator.freemarker.benchmark;
\ No newline at end of file
@@ -0,0 +1,53 @@
+package com.monator.freemarker.listener;
+
+import com.liferay.portal.ModelListenerException;
+import com.liferay.portal.model.BaseModelListener;
+import com.liferay.portlet.documentlibrary.model.DLFileEntry;
+import com.monator.freemarker.util.FreemarkerConstants;
+import com.monator.freemarker.util.TemplateMarkerUtil;
+
+/**
+ * Removes the markers of a template file entry and the listing of its folder when it is added, updated or removed, which makes the
+ * template loaders on all nodes evict the template, or look it up again if it was missing.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class DLFileEntryTemplateListener extends BaseModelListener<DLFileEntry> {
+
+    /* (non-Javadoc)
+     * @see com.liferay.portal.model.BaseModelListener#onAfterCreate(com.liferay.portal.model.BaseModel)
+     */
+    public void onAfterCreate(final DLFileEntry fileEntry) throws ModelListenerException {
+        fileEntryChanged(fileEntry);
+    }
+
+    /* (non-Javadoc)
+     * @see com.liferay.portal.model.BaseModelListener#onAfterUpdate(com.liferay.portal.model.BaseModel)
+     */
+    public void onAfterUpdate(final DLFileEntry fileEntry) throws ModelListenerException {
+        fileEntryChanged(fileEntry);
+    }
+
+    /* (non-Javadoc)
+     * @see com.liferay.portal.model.BaseModelListener#onAfterRemove(com.liferay.portal.model.BaseModel)
+     */
+    public void onAfterRemove(final DLFileEntry fileEntry) throws ModelListenerException {
+        fileEntryChanged(fileEntry);
+    }
+
+    /**
+     * Removes the markers of the file entry, of its name in its folder and of the folder listing, if it is a template.
+     * 
+     * @param fileEntry
+     *            the changed file entry
+     */
+    private void fileEntryChanged(final DLFileEntry fileEntry) {
+        if (!fileEntry.getTitle().endsWith(FreemarkerConstants.TEMPLATE_SUFFIX)) {
+            return;
+        }
+        TemplateMarkerUtil.unmark(TemplateMarkerUtil.getEntryKey(fileEntry.getFileEntryId()));
+        TemplateMarkerUtil.unmark(TemplateMarkerUtil.getNameKey(fileEntry.getFolderId(), fileEntry.getTitle()));
+        TemplateMarkerUtil.unmark(TemplateMarkerUtil.getListingKey(fileEntry.getFolderId()));
+    }
+}
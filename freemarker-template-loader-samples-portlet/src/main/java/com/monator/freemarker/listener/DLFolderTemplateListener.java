@@ -0,0 +1,94 @@
+package com.monator.freemarker.listener;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.liferay.portal.ModelListenerException;
+import com.liferay.portal.kernel.exception.SystemException;
+import com.liferay.portal.model.BaseModelListener;
+import com.liferay.portlet.documentlibrary.model.DLFolder;
+import com.liferay.portlet.documentlibrary.service.DLFolderLocalServiceUtil;
+import com.monator.freemarker.util.TemplateMarkerUtil;
+
+/**
+ * Removes the marker of a folder when it is moved, renamed or removed, which makes the template loaders on all nodes resolve their
+ * template folder again if the folder is part of its path. The marker of the folder's Site is removed on any such change, so that a Site
+ * without template folder is checked again once folders are added. Other updates, like the last post date set when a file is added,
+ * leave the markers alone.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class DLFolderTemplateListener extends BaseModelListener<DLFolder> {
+
+    /** Location of the folders being updated by the current thread, by folderId, read before the update. */
+    private static final ThreadLocal<Map<Long, String>> ORIGINAL_LOCATIONS = new ThreadLocal<Map<Long, String>>() {
+        protected Map<Long, String> initialValue() {
+            return new HashMap<Long, String>();
+        }
+    };
+
+    /* (non-Javadoc)
+     * @see com.liferay.portal.model.BaseModelListener#onAfterCreate(com.liferay.portal.model.BaseModel)
+     */
+    public void onAfterCreate(final DLFolder folder) throws ModelListenerException {
+        TemplateMarkerUtil.unmark(TemplateMarkerUtil.getSiteKey(folder.getGroupId()));
+    }
+
+    /* (non-Javadoc)
+     * @see com.liferay.portal.model.BaseModelListener#onBeforeUpdate(com.liferay.portal.model.BaseModel)
+     */
+    public void onBeforeUpdate(final DLFolder folder) throws ModelListenerException {
+        Map<Long, String> originalLocations = ORIGINAL_LOCATIONS.get();
+        originalLocations.remove(Long.valueOf(folder.getFolderId()));
+        try {
+            DLFolder original = DLFolderLocalServiceUtil.fetchDLFolder(folder.getFolderId());
+            // The same instance would already hold the new values, the folder is then treated as changed.
+            if (original != null && original != folder) {
+                originalLocations.put(Long.valueOf(folder.getFolderId()), getLocation(original));
+            }
+        } catch (SystemException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.liferay.portal.model.BaseModelListener#onAfterUpdate(com.liferay.portal.model.BaseModel)
+     */
+    public void onAfterUpdate(final DLFolder folder) throws ModelListenerException {
+        String originalLocation = ORIGINAL_LOCATIONS.get().remove(Long.valueOf(folder.getFolderId()));
+        if (originalLocation == null || !originalLocation.equals(getLocation(folder))) {
+            folderChanged(folder);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.liferay.portal.model.BaseModelListener#onAfterRemove(com.liferay.portal.model.BaseModel)
+     */
+    public void onAfterRemove(final DLFolder folder) throws ModelListenerException {
+        folderChanged(folder);
+    }
+
+    /**
+     * Returns the location of a folder, made up of its Site, parent folder and name, which are the properties the template loaders
+     * resolve template folders by.
+     * 
+     * @param folder
+     *            the folder
+     * @return the location of the folder
+     */
+    private String getLocation(final DLFolder folder) {
+        return folder.getGroupId() + "/" + folder.getParentFolderId() + "/" + folder.getName();
+    }
+
+    /**
+     * Removes the markers of the folder and its Site.
+     * 
+     * @param folder
+     *            the changed folder
+     */
+    private void folderChanged(final DLFolder folder) {
+        TemplateMarkerUtil.unmark(TemplateMarkerUtil.getFolderKey(folder.getFolderId()));
+        TemplateMarkerUtil.unmark(TemplateMarkerUtil.getSiteKey(folder.getGroupId()));
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * Liferay model listeners invalidating the templates loaded from the Document and Media Library
+ *
+ * @author Andreas Magnusson Monator Technologies AB
+ *
+ */
+package com.monator.freemarker.listener;
\ No newline at end of file
@@ -0,0 +1,100 @@
+package com.monator.freemarker.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies in microseconds. Each power of two is split into eight buckets, so a percentile is accurate to
+ * within an eighth of its value, from one microsecond up to several days. Recording a latency is a single atomic increment.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class LatencyHistogram {
+
+    /** Number of buckets per power of two. */
+    private static final int SUB_BUCKETS = 8;
+
+    /** Number of bits needed to index the buckets of a power of two. */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /** Number of buckets, enough for latencies up to 2^45 microseconds. */
+    private static final int BUCKETS = (45 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /** Number of recorded latencies in each bucket. */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Records a latency.
+     * 
+     * @param micros
+     *            the latency in microseconds
+     */
+    public final void record(final long micros) {
+        counts.incrementAndGet(getBucket(micros));
+    }
+
+    /**
+     * Returns a percentile of the recorded latencies.
+     * 
+     * @param percentile
+     *            the percentile, between 0 and 100
+     * @return the latency in microseconds below which the given percentage of the recorded latencies fall, or 0 if nothing has been
+     *         recorded
+     */
+    public final long getPercentile(final double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                return (getLowerBound(i) + getLowerBound(i + 1)) / 2;
+            }
+        }
+        return getLowerBound(BUCKETS);
+    }
+
+    /**
+     * Clears the recorded latencies.
+     */
+    public final void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    /**
+     * @param micros
+     *            a latency in microseconds
+     * @return the index of the bucket holding the latency
+     */
+    private static int getBucket(final long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+        int power = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (power - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, (power - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket);
+    }
+
+    /**
+     * @param bucket
+     *            the index of a bucket
+     * @return the smallest latency in microseconds held by the bucket
+     */
+    private static long getLowerBound(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int power = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (power - SUB_BUCKET_BITS);
+    }
+}
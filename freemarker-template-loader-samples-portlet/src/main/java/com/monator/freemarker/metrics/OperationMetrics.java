@@ -0,0 +1,189 @@
+package com.monator.freemarker.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters, byte total and latency histogram of one operation. A call is timed by taking {@link #start()} before it and passing the
+ * result to one of the recording methods after it, which costs a few atomic increments.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+
+    /** Nanoseconds per microsecond. */
+    private static final long NANOS_PER_MICRO = 1000;
+
+    /** Microseconds per millisecond. */
+    private static final double MICROS_PER_MILLI = 1000.0;
+
+    /** Number of calls. */
+    private final AtomicLong calls = new AtomicLong();
+
+    /** Number of calls that found what they looked for. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of calls that didn't find what they looked for. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Number of failed calls. */
+    private final AtomicLong errors = new AtomicLong();
+
+    /** Number of bytes transferred. */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /** Sum of all latencies in microseconds. */
+    private final AtomicLong totalMicros = new AtomicLong();
+
+    /** Highest latency in microseconds. */
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /** Histogram of the latencies. */
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /**
+     * @return the start time of a call, to pass to one of the recording methods
+     */
+    public final long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a call.
+     * 
+     * @param start
+     *            the start time of the call
+     */
+    public final void success(final long start) {
+        record(start);
+    }
+
+    /**
+     * Records a call that found what it looked for, or didn't.
+     * 
+     * @param start
+     *            the start time of the call
+     * @param hit
+     *            true if the call found what it looked for
+     */
+    public final void hitOrMiss(final long start, final boolean hit) {
+        (hit ? hits : misses).incrementAndGet();
+        record(start);
+    }
+
+    /**
+     * Records a failed call.
+     * 
+     * @param start
+     *            the start time of the call
+     */
+    public final void failure(final long start) {
+        errors.incrementAndGet();
+        record(start);
+    }
+
+    /**
+     * Adds to the number of bytes transferred.
+     * 
+     * @param count
+     *            the number of bytes
+     */
+    public final void addBytes(final long count) {
+        bytes.addAndGet(count);
+    }
+
+    /* (non-Javadoc)
+     * @see com.monator.freemarker.metrics.OperationMetricsMBean#getCalls()
+     */
+    public final long getCalls() {
+        return calls.get();
+    }
+
+    /* (non-Javadoc)
+     * @see com.monator.freemarker.metrics.OperationMetricsMBean#getHits()
+     */
+    public final long getHits() {
+        return hits.get();
+    }
+
+    /* (non-Javadoc)
+     * @see com.monator.freemarker.metrics.OperationMetricsMBean#getMisses()
+     */
+    public final long getMisses() {
+        return misses.get();
+    }
+
+    /* (non-Javadoc)
+     * @see com.monator.freemarker.metrics.OperationMetricsMBean#getErrors()
+     */
+    public final long getErrors() {
+        return errors.get();
+    }
+
+    /* (non-Javadoc)
+     * @see com.monator.freemarker.metrics.OperationMetricsMBean#getBytes()
+     */
+    public final long getBytes() {
+        return bytes.get();
+    }
+
+    /* (non-Javadoc)
+     * @see com.monator.freemarker.metrics.OperationMetricsMBean#getMeanMillis()
+     */
+    public final double getMeanMillis() {
+        long count = calls.get();
+        return count == 0 ? 0 : totalMicros.get() / MICROS_PER_MILLI / count;
+    }
+
+    /* (non-Javadoc)
+     * @see com.monator.freemarker.metrics.OperationMetricsMBean#getP50Millis()
+     */
+    public final double getP50Millis() {
+        return latencies.getPercentile(50) / MICROS_PER_MILLI;
+    }
+
+    /* (non-Javadoc)
+     * @see com.monator.freemarker.metrics.OperationMetricsMBean#getP99Millis()
+     */
+    public final double getP99Millis() {
+        return latencies.getPercentile(99) / MICROS_PER_MILLI;
+    }
+
+    /* (non-Javadoc)
+     * @see com.monator.freemarker.metrics.OperationMetricsMBean#getMaxMillis()
+     */
+    public final double getMaxMillis() {
+        return maxMicros.get() / MICROS_PER_MILLI;
+    }
+
+    /* (non-Javadoc)
+     * @see com.monator.freemarker.metrics.OperationMetricsMBean#reset()
+     */
+    public final void reset() {
+        calls.set(0);
+        hits.set(0);
+        misses.set(0);
+        errors.set(0);
+        bytes.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+        latencies.reset();
+    }
+
+    /**
+     * Records the latency of a call.
+     * 
+     * @param start
+     *            the start time of the call
+     */
+    private void record(final long start) {
+        long micros = (System.nanoTime() - start) / NANOS_PER_MICRO;
+        calls.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        latencies.record(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.monator.freemarker.metrics;
+
+/**
+ * The JMX view of the metrics of one operation of a template loader or backend.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public interface OperationMetricsMBean {
+
+    /**
+     * @return the number of calls
+     */
+    long getCalls();
+
+    /**
+     * @return the number of calls that found what they looked for
+     */
+    long getHits();
+
+    /**
+     * @return the number of calls that didn't find what they looked for
+     */
+    long getMisses();
+
+    /**
+     * @return the number of calls that failed
+     */
+    long getErrors();
+
+    /**
+     * @return the number of bytes transferred
+     */
+    long getBytes();
+
+    /**
+     * @return the mean latency in milliseconds
+     */
+    double getMeanMillis();
+
+    /**
+     * @return the median latency in milliseconds
+     */
+    double getP50Millis();
+
+    /**
+     * @return the 99th percentile latency in milliseconds
+     */
+    double getP99Millis();
+
+    /**
+     * @return the highest latency in milliseconds
+     */
+    double getMaxMillis();
+
+    /**
+     * Clears the counters and latencies.
+     */
+    void reset();
+}
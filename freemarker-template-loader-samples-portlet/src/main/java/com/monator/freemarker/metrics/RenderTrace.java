@@ -0,0 +1,162 @@
+package com.monator.freemarker.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The trace of one portlet render: the time spent in each phase, e.g. in each template loader call, parsing and rendering, and which
+ * backend served each template name. The trace of a render is bound to the rendering thread, and to the threads working for it while
+ * they do, so that the code timing a phase only has to look it up with {@link #current()}. Nothing is recorded when no trace is bound.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public final class RenderTrace {
+
+    /** Nanoseconds per millisecond. */
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    /** The trace bound to each thread. */
+    private static final ThreadLocal<RenderTrace> CURRENT = new ThreadLocal<RenderTrace>();
+
+    /** The name of the rendered view. */
+    private final String view;
+
+    /** Start time of the render. */
+    private final long start = System.nanoTime();
+
+    /** Number of calls and total nanoseconds of each phase, in the order the phases were first recorded. */
+    private final Map<String, long[]> phases = new LinkedHashMap<String, long[]>();
+
+    /** The backend that served each template name. */
+    private final Map<String, String> servedBy = new LinkedHashMap<String, String>();
+
+    /**
+     * @param view
+     *            the name of the rendered view
+     */
+    private RenderTrace(final String view) {
+        this.view = view;
+    }
+
+    /**
+     * Starts a trace and binds it to the calling thread.
+     * 
+     * @param view
+     *            the name of the rendered view
+     * @return the trace
+     */
+    public static RenderTrace start(final String view) {
+        RenderTrace trace = new RenderTrace(view);
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * @return the trace bound to the calling thread, or <code>null</code> if the thread isn't rendering
+     */
+    public static RenderTrace current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Binds a trace to the calling thread, e.g. a pool thread working for a render.
+     * 
+     * @param trace
+     *            the trace, or <code>null</code> to unbind
+     * @return the trace bound before, to restore when done
+     */
+    public static RenderTrace bind(final RenderTrace trace) {
+        RenderTrace previous = CURRENT.get();
+        if (trace == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(trace);
+        }
+        return previous;
+    }
+
+    /**
+     * Ends the trace and unbinds it from the calling thread.
+     */
+    public void end() {
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * Records a call of a phase.
+     * 
+     * @param phase
+     *            the name of the phase, e.g. <code>cmis.findTemplateSource</code>
+     * @param nanos
+     *            the time the call took in nanoseconds
+     */
+    public synchronized void record(final String phase, final long nanos) {
+        long[] timing = phases.get(phase);
+        if (timing == null) {
+            timing = new long[2];
+            phases.put(phase, timing);
+        }
+        timing[0]++;
+        timing[1] += nanos;
+    }
+
+    /**
+     * Records the backend that served a template name.
+     * 
+     * @param name
+     *            the name of the template
+     * @param backend
+     *            the name of the backend
+     */
+    public synchronized void served(final String name, final String backend) {
+        servedBy.put(name, backend);
+    }
+
+    /**
+     * @return the time since the trace was started in milliseconds
+     */
+    public long getElapsedMillis() {
+        return (long) ((System.nanoTime() - start) / NANOS_PER_MILLI);
+    }
+
+    /**
+     * Returns the trace as one line of <code>key=value</code> pairs: the view, the total time, the calls and time of each phase and the
+     * backend of each template name, e.g.
+     * <code>view=view totalMs=812.4 cmis.findTemplateSource.calls=2 cmis.findTemplateSource.ms=785.0 ... served=view.ftl:cmis</code>.
+     * 
+     * @return the trace
+     */
+    public synchronized String toString() {
+        StringBuilder line = new StringBuilder("view=").append(view);
+        appendMillis(line, "totalMs", System.nanoTime() - start);
+        for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+            line.append(' ').append(phase.getKey()).append(".calls=").append(phase.getValue()[0]);
+            appendMillis(line, phase.getKey() + ".ms", phase.getValue()[1]);
+        }
+        line.append(" served=");
+        String separator = "";
+        for (Map.Entry<String, String> served : servedBy.entrySet()) {
+            line.append(separator).append(served.getKey()).append(':').append(served.getValue());
+            separator = ",";
+        }
+        return line.toString();
+    }
+
+    /**
+     * Appends a time in milliseconds with one decimal.
+     * 
+     * @param line
+     *            the line to append to
+     * @param key
+     *            the key of the time
+     * @param nanos
+     *            the time in nanoseconds
+     */
+    private static void appendMillis(final StringBuilder line, final String key, final long nanos) {
+        long tenths = Math.round(nanos / (NANOS_PER_MILLI / 10));
+        line.append(' ').append(key).append('=').append(tenths / 10).append('.').append(tenths % 10);
+    }
+}
@@ -0,0 +1,164 @@
+package com.monator.freemarker.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The metrics of the template loaders and their backends, one {@link OperationMetrics} per backend and operation. Once initialized, the
+ * metrics are registered with the platform MBean server as
+ * <code>&lt;domain&gt;:type=TemplateMetrics,backend=&lt;backend&gt;,operation=&lt;operation&gt;</code>. Metrics that haven't been
+ * registered are still kept, so loaders can record without checking if metrics are configured.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class TemplateMetrics {
+
+    /** Constant to use for logging. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(TemplateMetrics.class);
+
+    /** The metrics by backend and operation. */
+    private final ConcurrentMap<String, ConcurrentMap<String, OperationMetrics>> backends =
+            new ConcurrentHashMap<String, ConcurrentMap<String, OperationMetrics>>();
+
+    /** Domain of the MBean names. */
+    private String domain = "com.monator.freemarker";
+
+    /** The MBean server the metrics are registered with, <code>null</code> until initialized. */
+    private volatile MBeanServer mbeanServer;
+
+    /**
+     * Sets the domain of the MBean names, which has to be unique among the webapps of the server.
+     * 
+     * @param domain
+     *            the domain
+     */
+    public final void setDomain(final String domain) {
+        this.domain = domain;
+    }
+
+    /**
+     * Registers all metrics, and from now on every new metrics, with the platform MBean server.
+     */
+    public final synchronized void init() {
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (Map.Entry<String, ConcurrentMap<String, OperationMetrics>> backend : backends.entrySet()) {
+            for (Map.Entry<String, OperationMetrics> operation : backend.getValue().entrySet()) {
+                register(backend.getKey(), operation.getKey(), operation.getValue());
+            }
+        }
+    }
+
+    /**
+     * Unregisters all metrics from the MBean server.
+     */
+    public final synchronized void destroy() {
+        if (mbeanServer == null) {
+            return;
+        }
+        for (Map.Entry<String, ConcurrentMap<String, OperationMetrics>> backend : backends.entrySet()) {
+            for (String operation : backend.getValue().keySet()) {
+                try {
+                    ObjectName name = getObjectName(backend.getKey(), operation);
+                    if (mbeanServer.isRegistered(name)) {
+                        mbeanServer.unregisterMBean(name);
+                    }
+                } catch (JMException e) {
+                    LOGGER.warn("Could not unregister the metrics of " + backend.getKey() + " " + operation + ": " + e.getMessage());
+                }
+            }
+        }
+        mbeanServer = null;
+    }
+
+    /**
+     * Returns the metrics of an operation, creating them on first use.
+     * 
+     * @param backend
+     *            the name of the loader or backend
+     * @param operation
+     *            the name of the operation
+     * @return the metrics
+     */
+    public final OperationMetrics get(final String backend, final String operation) {
+        ConcurrentMap<String, OperationMetrics> operations = backends.get(backend);
+        if (operations == null) {
+            operations = new ConcurrentHashMap<String, OperationMetrics>();
+            ConcurrentMap<String, OperationMetrics> existing = backends.putIfAbsent(backend, operations);
+            if (existing != null) {
+                operations = existing;
+            }
+        }
+        OperationMetrics metrics = operations.get(operation);
+        if (metrics == null) {
+            metrics = new OperationMetrics();
+            OperationMetrics existing = operations.putIfAbsent(operation, metrics);
+            if (existing != null) {
+                return existing;
+            }
+            synchronized (this) {
+                if (mbeanServer != null) {
+                    register(backend, operation, metrics);
+                }
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the metrics recorded so far, by backend and operation name
+     */
+    public final Map<String, Map<String, OperationMetrics>> getOperations() {
+        Map<String, Map<String, OperationMetrics>> operations = new TreeMap<String, Map<String, OperationMetrics>>();
+        for (Map.Entry<String, ConcurrentMap<String, OperationMetrics>> backend : backends.entrySet()) {
+            operations.put(backend.getKey(), new TreeMap<String, OperationMetrics>(backend.getValue()));
+        }
+        return operations;
+    }
+
+    /**
+     * Registers the metrics of an operation, replacing metrics left under the same name, e.g. by an earlier deployment.
+     * 
+     * @param backend
+     *            the name of the loader or backend
+     * @param operation
+     *            the name of the operation
+     * @param metrics
+     *            the metrics
+     */
+    private void register(final String backend, final String operation, final OperationMetrics metrics) {
+        try {
+            ObjectName name = getObjectName(backend, operation);
+            if (mbeanServer.isRegistered(name)) {
+                mbeanServer.unregisterMBean(name);
+            }
+            mbeanServer.registerMBean(metrics, name);
+        } catch (JMException e) {
+            LOGGER.warn("Could not register the metrics of " + backend + " " + operation + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param backend
+     *            the name of the loader or backend
+     * @param operation
+     *            the name of the operation
+     * @return the MBean name of the metrics
+     * @throws JMException
+     *             if the name is not valid
+     */
+    private ObjectName getObjectName(final String backend, final String operation) throws JMException {
+        return new ObjectName(domain + ":type=TemplateMetrics,backend=" + ObjectName.quote(backend) + ",operation="
+                + ObjectName.quote(operation));
+    }
+}
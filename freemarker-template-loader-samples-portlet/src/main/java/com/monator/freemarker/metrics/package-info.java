@@ -0,0 +1,7 @@
+/**
+ * Metrics of the Freemarker Template Loaders, published through JMX
+ *
+ * @author Andreas Magnusson Monator Technologies AB
+ *
+ */
+package com.monator.freemarker.metrics;
\ No newline at end of file
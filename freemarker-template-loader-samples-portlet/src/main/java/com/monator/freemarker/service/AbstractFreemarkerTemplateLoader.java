@@ -0,0 +1,1102 @@
+package com.monator.freemarker.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+
+import com.monator.freemarker.metrics.OperationMetrics;
+import com.monator.freemarker.metrics.TemplateMetrics;
+import com.monator.freemarker.util.NamedThreadFactory;
+import com.monator.freemarker.util.SiteTemplateNameUtil;
+import com.monator.freemarker.util.StreamUtil;
+import com.monator.freemarker.util.TemplateDependencyUtil;
+
+import freemarker.cache.TemplateLoader;
+
+/**
+ * Base class for the template loaders, handling what they have in common: reading and caching template content, notifying
+ * {@link TemplateChangeListener}s, the optional stale-while-revalidate mode and the optional {@link TemplateSnapshotStore}.
+ * 
+ * In stale-while-revalidate mode the last known template source is returned right away and the backend lookup runs on a background
+ * executor. When the lookup finds a newer version, or finds that the template is gone, the cached source is swapped and FreeMarker
+ * picks up the change on its next update check. A slow backend therefore never shows up in render latency once a template has been
+ * loaded.
+ * 
+ * Concurrent lookups of the same template, and concurrent reads of the same template version, are coalesced into one backend call
+ * whose result all callers share, so an evicted or changed template doesn't send every render thread to the backend at once.
+ * 
+ * With a snapshot store, templates are served from the snapshot taken before the last restart until they have been revalidated, so
+ * the first renders after a restart don't wait for the backends, and every new version read from a backend is added to the snapshot.
+ * 
+ * Backend calls can be given a deadline and are guarded by a {@link CircuitBreaker}. When the backend fails, doesn't answer in time or
+ * the breaker is open, the last version of the template found by the loader is served instead, or the fallback template if the loader
+ * has one and the name matches it. Otherwise the template is reported as missing, so that the next loader is asked.
+ * 
+ * Templates read from a backend are scanned for <code>#include</code> and <code>#import</code> directives, decoded with the encoding
+ * FreeMarker reads them with. A template read in the background without an encoding is scanned when FreeMarker first reads it. The
+ * included templates are prefetched in the background, so that FreeMarker finds them in the caches when it gets to the directives,
+ * and the dependencies are kept in a {@link TemplateDependencyGraph}. When a template changes, the listeners are also told about the
+ * templates depending on it.
+ * 
+ * The calls FreeMarker makes and the lookups and reads that reach the backend are counted and timed in the {@link TemplateMetrics} of
+ * the loader, under the name returned by {@link #getBackendName()}.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public abstract class AbstractFreemarkerTemplateLoader implements ObservableTemplateLoader {
+
+    /** Constant to use for logging. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AbstractFreemarkerTemplateLoader.class);
+
+    /** Set on threads whose lookups must not create missing Sites, folders or templates, see {@link #callWithoutCreating(Callable)}. */
+    private static final ThreadLocal<Boolean> CREATION_SUSPENDED = new ThreadLocal<Boolean>();
+
+    /** Listeners to notify when a template has changed. */
+    private List<TemplateChangeListener> changeListeners = new CopyOnWriteArrayList<TemplateChangeListener>();
+
+    /** Determines if the last known template source is served while it is revalidated in the background. */
+    private boolean staleWhileRevalidate;
+
+    /** Number of threads revalidating template sources. */
+    private int revalidationThreads = 1;
+
+    /** Executor revalidating template sources, <code>null</code> until needed. */
+    private ExecutorService revalidationExecutor;
+
+    /** The context keys the templates have been requested in, see {@link #getContextKey()}. */
+    private final Set<String> contextKeys = new CopyOnWriteArraySet<String>();
+
+    /** The last known template sources by context key and name. */
+    private ConcurrentMap<String, KnownSource> knownSources = new ConcurrentHashMap<String, KnownSource>();
+
+    /** Context keys and names of the templates currently being revalidated. */
+    private Map<String, Boolean> revalidating = new ConcurrentHashMap<String, Boolean>();
+
+    /** Names of the served templates mapped by their id in the backend. */
+    private Map<String, String> namesById = new ConcurrentHashMap<String, String>();
+
+    /** Coalesces concurrent lookups of the same template. */
+    private final SingleFlight<Object> lookups = new SingleFlight<Object>();
+
+    /** Coalesces concurrent reads of the same template version. */
+    private final SingleFlight<byte[]> reads = new SingleFlight<byte[]>();
+
+    /** Cache for template content, <code>null</code> when content caching is disabled. */
+    private TemplateContentCache contentCache;
+
+    /** Local snapshot of the served templates, <code>null</code> when not used. */
+    private TemplateSnapshotStore snapshotStore;
+
+    /** Circuit breaker for the backend calls. */
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker(getClass().getSimpleName());
+
+    /** Time in milliseconds a backend call may take, zero or less means no deadline. */
+    private long callTimeout;
+
+    /** Executor running backend calls that have a deadline, <code>null</code> until needed. */
+    private ExecutorService callExecutor;
+
+    /** The last template sources found in the backend by context key and name, served when the backend is unavailable. */
+    private Map<String, Object> lastFoundSources = new ConcurrentHashMap<String, Object>();
+
+    /** Template served when the backend is unavailable and no earlier version is known, <code>null</code> if none. */
+    private Resource fallbackTemplate;
+
+    /** Content of the fallback template, read on first use. */
+    private byte[] fallbackContent;
+
+    /** The includes and imports of the read templates. */
+    private final TemplateDependencyGraph dependencyGraph = new TemplateDependencyGraph();
+
+    /** Number of threads prefetching included templates, zero or less disables the prefetching. */
+    private int dependencyPrefetchThreads;
+
+    /** Executor prefetching included templates, <code>null</code> until needed. */
+    private ExecutorService dependencyExecutor;
+
+    /** Ids of the templates read without an encoding, scanned for dependencies when FreeMarker reads them. */
+    private Map<String, Boolean> unscannedIds = new ConcurrentHashMap<String, Boolean>();
+
+    /** Context keys and names of the included templates currently being prefetched. */
+    private Map<String, Boolean> prefetchingDependencies = new ConcurrentHashMap<String, Boolean>();
+
+    /** Metrics of the loader, kept but not published unless shared metrics are set. */
+    private TemplateMetrics metrics = new TemplateMetrics();
+
+    /**
+     * Looks up a template in the backend.
+     * 
+     * @param name
+     *            the name of the template
+     * @return the template source or <code>null</code> if the template doesn't exist
+     * @throws IOException
+     *             if the backend could not be read
+     * @see TemplateLoader#findTemplateSource(String)
+     */
+    protected abstract Object lookupTemplateSource(String name) throws IOException;
+
+    /**
+     * Lists the names of the templates in the loader's template folder.
+     * 
+     * @return the template names
+     * @throws IOException
+     *             if the backend could not be read
+     */
+    protected abstract List<String> listTemplateNames() throws IOException;
+
+    /**
+     * Returns the id of a template in the backend, used to key its content and to map changes in the backend to template names.
+     * 
+     * @param templateSource
+     *            the template source
+     * @return the id of the template
+     */
+    protected abstract String getTemplateId(Object templateSource);
+
+    /**
+     * Returns the version of a template, which changes whenever its content changes.
+     * 
+     * @param templateSource
+     *            the template source
+     * @return the version of the template or <code>null</code> if it can not be determined
+     */
+    protected abstract String getTemplateVersion(Object templateSource);
+
+    /**
+     * Returns the time a template was last modified in the backend.
+     * 
+     * @param templateSource
+     *            the template source
+     * @return the last modification time
+     * @see TemplateLoader#getLastModified(Object)
+     */
+    protected abstract long getTemplateLastModified(Object templateSource);
+
+    /**
+     * Opens the content of a template in the backend.
+     * 
+     * @param templateSource
+     *            the template source
+     * @return the content stream, closed by the caller
+     * @throws IOException
+     *             if the content could not be opened
+     */
+    protected abstract InputStream openContent(Object templateSource) throws IOException;
+
+    /**
+     * Returns the namespace of the loader's templates in the snapshot store, which has to be unique among the loaders sharing the store
+     * and the same after a restart.
+     * 
+     * @return the namespace
+     */
+    protected abstract String getSnapshotNamespace();
+
+    /**
+     * Returns the name the metrics of the loader are published under.
+     * 
+     * @return the backend name
+     */
+    protected abstract String getBackendName();
+
+    /**
+     * Returns a key for the thread context the lookups depend on, so that only lookups made in the same context are coalesced and a
+     * template source found in one context is never served in another. Returns an empty string by default.
+     * 
+     * @return the context key
+     */
+    protected String getContextKey() {
+        return "";
+    }
+
+    /**
+     * Checks if the backend can currently be reached. Template sources are not revalidated while it can't, so that known templates are
+     * not dropped. Returns true by default.
+     * 
+     * @return true if the backend can be reached
+     */
+    protected boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Wraps a task that runs on a background thread so that it sees the same thread context as the calling thread. Returns the task as
+     * it is by default.
+     * 
+     * @param <T>
+     *            the result type of the task
+     * @param task
+     *            the task to wrap
+     * @return the wrapped task
+     */
+    protected <T> Callable<T> inheritContext(final Callable<T> task) {
+        return task;
+    }
+
+    /**
+     * Runs a call in which the lookups of all loaders only find what exists, e.g. to precompile templates, without creating a missing
+     * Site, folder or default template. Lookups the call makes on background threads of the loaders are included.
+     * 
+     * @param <T>
+     *            the result type of the call
+     * @param call
+     *            the call
+     * @return the result of the call
+     * @throws Exception
+     *             if the call failed
+     */
+    public static <T> T callWithoutCreating(final Callable<T> call) throws Exception {
+        Boolean previous = CREATION_SUSPENDED.get();
+        CREATION_SUSPENDED.set(Boolean.TRUE);
+        try {
+            return call.call();
+        } finally {
+            CREATION_SUSPENDED.set(previous);
+        }
+    }
+
+    /**
+     * @return true if lookups of the calling thread may create a missing Site, folder or default template, as configured
+     */
+    protected static boolean isCreationAllowed() {
+        return !Boolean.TRUE.equals(CREATION_SUSPENDED.get());
+    }
+
+    /**
+     * Wraps a task that runs on a background thread so that it sees the thread context of the calling thread, see
+     * {@link #inheritContext(Callable)}, and the same permission to create missing content.
+     * 
+     * @param <T>
+     *            the result type of the task
+     * @param task
+     *            the task to wrap
+     * @return the wrapped task
+     */
+    final <T> Callable<T> inheritThreadState(final Callable<T> task) {
+        final Callable<T> contextTask = inheritContext(task);
+        if (isCreationAllowed()) {
+            return contextTask;
+        }
+        return new Callable<T>() {
+            public T call() throws Exception {
+                return callWithoutCreating(contextTask);
+            }
+        };
+    }
+
+    /**
+     * Determines if the last known template source is served while it is revalidated in the background.
+     * 
+     * @param staleWhileRevalidate
+     *            if true, lookups are served from the last known source
+     */
+    public final void setStaleWhileRevalidate(final boolean staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    /**
+     * Sets the number of threads revalidating template sources in stale-while-revalidate mode.
+     * 
+     * @param revalidationThreads
+     *            the number of threads
+     */
+    public final void setRevalidationThreads(final int revalidationThreads) {
+        this.revalidationThreads = Math.max(1, revalidationThreads);
+    }
+
+    /**
+     * Enables caching of template content in memory. Content is cached per template and version, so a template is only read from the
+     * backend again when it has changed or has been evicted.
+     * 
+     * @param maxBytes
+     *            maximum number of content bytes to keep in memory, zero or less disables the cache
+     */
+    public final void setContentCacheMaxBytes(final long maxBytes) {
+        this.contentCache = maxBytes > 0 ? new TemplateContentCache(maxBytes) : null;
+    }
+
+    /**
+     * Sets the snapshot store to serve templates from after a restart and to add read templates to.
+     * 
+     * @param snapshotStore
+     *            the snapshot store
+     */
+    public final void setSnapshotStore(final TemplateSnapshotStore snapshotStore) {
+        this.snapshotStore = snapshotStore;
+    }
+
+    /**
+     * Sets the time a backend call may take before the loader gives up on it and serves the last known version of the template.
+     * 
+     * @param callTimeoutMillis
+     *            time in milliseconds, zero or less means no deadline
+     */
+    public final void setCallTimeoutMillis(final long callTimeoutMillis) {
+        this.callTimeout = callTimeoutMillis;
+    }
+
+    /**
+     * Sets the number of failed backend calls in a row after which the backend is no longer called for a while.
+     * 
+     * @param failures
+     *            the number of failures, zero or less disables the circuit breaker
+     */
+    public final void setCircuitBreakerFailures(final int failures) {
+        circuitBreaker.setFailureThreshold(failures);
+    }
+
+    /**
+     * Sets the time the backend is no longer called once the circuit breaker has opened.
+     * 
+     * @param seconds
+     *            time in seconds
+     */
+    public final void setCircuitBreakerOpenSeconds(final int seconds) {
+        circuitBreaker.setOpenTime(TimeUnit.SECONDS.toMillis(seconds));
+    }
+
+    /**
+     * Sets the number of threads prefetching the templates that read templates include or import.
+     * 
+     * @param dependencyPrefetchThreads
+     *            the number of threads, zero or less disables the prefetching
+     */
+    public final void setDependencyPrefetchThreads(final int dependencyPrefetchThreads) {
+        this.dependencyPrefetchThreads = dependencyPrefetchThreads;
+    }
+
+    /**
+     * Sets the template to serve under its own file name when the backend is unavailable and the loader hasn't found the template
+     * before.
+     * 
+     * @param fallbackTemplate
+     *            the fallback template
+     */
+    public final void setFallbackTemplate(final Resource fallbackTemplate) {
+        this.fallbackTemplate = fallbackTemplate;
+    }
+
+    /**
+     * Sets the metrics to record the calls of the loader in.
+     * 
+     * @param metrics
+     *            the metrics
+     */
+    public final void setMetrics(final TemplateMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /* (non-Javadoc)
+     * @see com.monator.freemarker.service.ObservableTemplateLoader#addTemplateChangeListener(com.monator.freemarker.service.TemplateChangeListener)
+     */
+    public final void addTemplateChangeListener(final TemplateChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Stops the background revalidation and prefetching, and any backend calls still running.
+     */
+    public void destroy() {
+        if (revalidationExecutor != null) {
+            revalidationExecutor.shutdownNow();
+        }
+        synchronized (this) {
+            if (callExecutor != null) {
+                callExecutor.shutdownNow();
+            }
+            if (dependencyExecutor != null) {
+                dependencyExecutor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Lists the names of all templates the loader can serve, e.g. to precompile them, within the deadline of a backend call.
+     * 
+     * @return the template names
+     * @throws IOException
+     *             if the backend could not be read or is unavailable
+     */
+    public final List<String> getTemplateNames() throws IOException {
+        return callBackend(new Callable<List<String>>() {
+            public List<String> call() throws IOException {
+                return listTemplateNames();
+            }
+        });
+    }
+
+    /**
+     * Looks up the template in the backend, or in stale-while-revalidate mode returns the last known source and revalidates it in the
+     * background. A template in the snapshot is served from the snapshot until it has been revalidated, in either mode. When the
+     * backend is unavailable the last version found is served, see {@link #getFallbackSource(String, Exception)}.
+     * 
+     * {@inheritDoc}
+     */
+    public final Object findTemplateSource(final String name) throws IOException {
+        OperationMetrics findMetrics = getOperationMetrics("findTemplateSource");
+        long start = findMetrics.start();
+        String key = getKey(name);
+        KnownSource known = knownSources.get(key);
+        if (known == null) {
+            SnapshotTemplateSource snapshotSource = snapshotStore != null ? snapshotStore.take(getSnapshotNamespace(), name) : null;
+            if (snapshotSource != null) {
+                known = new KnownSource(snapshotSource);
+                knownSources.put(key, known);
+            }
+        } else if (!staleWhileRevalidate && !(known.templateSource instanceof SnapshotTemplateSource)) {
+            knownSources.remove(key, known);
+            known = null;
+        }
+
+        if (known == null) {
+            Object templateSource;
+            try {
+                templateSource = lookup(name);
+            } catch (IOException e) {
+                findMetrics.failure(start);
+                return getFallbackSource(name, e);
+            } catch (RuntimeException e) {
+                findMetrics.failure(start);
+                return getFallbackSource(name, e);
+            }
+            if (staleWhileRevalidate) {
+                knownSources.put(key, new KnownSource(templateSource));
+            }
+            findMetrics.hitOrMiss(start, templateSource != null);
+            return templateSource;
+        }
+        revalidate(key, name, known);
+        findMetrics.hitOrMiss(start, known.templateSource != null);
+        return known.templateSource;
+    }
+
+    /* (non-Javadoc)
+     * @see freemarker.cache.TemplateLoader#getLastModified(java.lang.Object)
+     */
+    public final long getLastModified(final Object templateSource) {
+        OperationMetrics lastModifiedMetrics = getOperationMetrics("getLastModified");
+        long start = lastModifiedMetrics.start();
+        long lastModified;
+        if (templateSource instanceof SnapshotTemplateSource) {
+            lastModified = ((SnapshotTemplateSource) templateSource).getLastModified();
+        } else if (templateSource instanceof FallbackTemplateSource) {
+            lastModified = ((FallbackTemplateSource) templateSource).getLastModified();
+        } else {
+            lastModified = getTemplateLastModified(templateSource);
+        }
+        lastModifiedMetrics.success(start);
+        return lastModified;
+    }
+
+    /**
+     * Serves the content from the content cache or the snapshot when possible, otherwise reads it from the backend.
+     * 
+     * {@inheritDoc}
+     */
+    public final Reader getReader(final Object templateSource, final String encoding) throws IOException {
+        OperationMetrics readerMetrics = getOperationMetrics("getReader");
+        long start = readerMetrics.start();
+        byte[] content;
+        try {
+            content = getContent(templateSource, encoding);
+        } catch (IOException e) {
+            readerMetrics.failure(start);
+            throw e;
+        }
+        readerMetrics.addBytes(content.length);
+        readerMetrics.success(start);
+        return new InputStreamReader(new ByteArrayInputStream(content), encoding);
+    }
+
+    /* (non-Javadoc)
+     * @see freemarker.cache.TemplateLoader#closeTemplateSource(java.lang.Object)
+     */
+    public final void closeTemplateSource(final Object templateSource) throws IOException {
+        // Do nothing
+    }
+
+    /**
+     * Reads the content of a template into the content cache, unless it is already cached, and remembers the name it was found by.
+     * 
+     * @param name
+     *            the name of the template
+     * @param templateSource
+     *            the template source
+     * @return the number of content bytes read from the backend
+     * @throws IOException
+     *             if the content could not be read
+     */
+    protected final long loadContent(final String name, final Object templateSource) throws IOException {
+        String id = getTemplateId(templateSource);
+        namesById.put(id, name);
+        if (contentCache == null || contentCache.get(id, getTemplateVersion(templateSource)) != null) {
+            return 0;
+        }
+        return getContent(templateSource, null).length;
+    }
+
+    /**
+     * Forgets the content and name of a template that has changed in the backend.
+     * 
+     * @param id
+     *            the id of the template
+     * @return the name of the template or <code>null</code> if it hasn't been served
+     */
+    protected final String forgetTemplate(final String id) {
+        if (contentCache != null) {
+            contentCache.remove(id);
+        }
+        unscannedIds.remove(id);
+        String name = namesById.remove(id);
+        if (name != null) {
+            for (String contextKey : contextKeys) {
+                lastFoundSources.remove(contextKey + name);
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Forgets the known sources of a template in all contexts, including the sources requested under a Site qualified name, and notifies
+     * the listeners that it has changed, along with the templates that include or import it. A changed template that other templates
+     * depend on is prefetched again.
+     * 
+     * @param name
+     *            the name of the template, or <code>null</code> if any template may have changed
+     */
+    protected final void fireTemplateChanged(final String name) {
+        if (name != null) {
+            for (String key : knownSources.keySet()) {
+                if (isKeyOf(key, name)) {
+                    knownSources.remove(key);
+                }
+            }
+            for (String contextKey : contextKeys) {
+                lastFoundSources.remove(contextKey + name);
+            }
+            if (snapshotStore != null) {
+                snapshotStore.take(getSnapshotNamespace(), name);
+            }
+        } else {
+            knownSources.clear();
+            lastFoundSources.clear();
+        }
+        for (TemplateChangeListener listener : changeListeners) {
+            listener.templateChanged(name);
+        }
+        if (name == null) {
+            return;
+        }
+        Set<String> dependents = dependencyGraph.getDependents(name);
+        for (String dependent : dependents) {
+            for (TemplateChangeListener listener : changeListeners) {
+                listener.templateChanged(dependent);
+            }
+        }
+        if (!dependents.isEmpty()) {
+            prefetchDependency(name, null);
+        }
+    }
+
+    /**
+     * Returns the key a template is remembered by in the context of the calling thread, and records the context.
+     * 
+     * @param name
+     *            the name of the template
+     * @return the context key followed by the name
+     */
+    private String getKey(final String name) {
+        String contextKey = getContextKey();
+        contextKeys.add(contextKey);
+        return contextKey + name;
+    }
+
+    /**
+     * Checks if a key is the key of a template in any context, or of the template requested under a Site qualified name.
+     * 
+     * @param key
+     *            the key, see {@link #getKey(String)}
+     * @param name
+     *            the name of the template
+     * @return true if the key belongs to the template
+     */
+    private boolean isKeyOf(final String key, final String name) {
+        for (String contextKey : contextKeys) {
+            if (key.startsWith(contextKey) && SiteTemplateNameUtil.getTemplateName(key.substring(contextKey.length())).equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Looks up a template in the backend and remembers the name of a found template by its id. Concurrent lookups of the same template
+     * in the same context share one backend call, unless only one of them may create missing content.
+     * 
+     * @param name
+     *            the name of the template
+     * @return the template source or <code>null</code> if the template doesn't exist
+     * @throws IOException
+     *             if the backend could not be read
+     */
+    private Object lookup(final String name) throws IOException {
+        return lookups.execute(getContextKey() + (isCreationAllowed() ? "" : "!") + name, new Callable<Object>() {
+            public Object call() throws IOException {
+                OperationMetrics lookupMetrics = getOperationMetrics("lookup");
+                long start = lookupMetrics.start();
+                Object templateSource;
+                try {
+                    templateSource = callBackend(new Callable<Object>() {
+                        public Object call() throws IOException {
+                            return lookupTemplateSource(name);
+                        }
+                    });
+                } catch (IOException e) {
+                    lookupMetrics.failure(start);
+                    throw e;
+                }
+                lookupMetrics.hitOrMiss(start, templateSource != null);
+                if (templateSource != null) {
+                    namesById.put(getTemplateId(templateSource), name);
+                    lastFoundSources.put(getKey(name), templateSource);
+                } else {
+                    lastFoundSources.remove(getKey(name));
+                }
+                return templateSource;
+            }
+        });
+    }
+
+    /**
+     * Returns the content of a template, from the snapshot, the content cache or the backend. Content read from the backend is cached
+     * and added to the snapshot. Concurrent reads of the same template version share one backend call. When the backend is unavailable,
+     * content cached for an earlier version is served. Content read without an encoding is scanned for dependencies once it is read with
+     * one.
+     * 
+     * @param templateSource
+     *            the template source
+     * @param encoding
+     *            the encoding of the template, or <code>null</code> if not known
+     * @return the content of the template
+     * @throws IOException
+     *             if the content could not be read
+     */
+    private byte[] getContent(final Object templateSource, final String encoding) throws IOException {
+        if (templateSource instanceof SnapshotTemplateSource) {
+            return ((SnapshotTemplateSource) templateSource).getContent();
+        } else if (templateSource instanceof FallbackTemplateSource) {
+            return ((FallbackTemplateSource) templateSource).getContent();
+        }
+        final String id = getTemplateId(templateSource);
+        final String version = getTemplateVersion(templateSource);
+        byte[] content = contentCache != null ? contentCache.get(id, version) : null;
+        if (content != null) {
+            if (encoding != null && !unscannedIds.isEmpty() && unscannedIds.remove(id) != null) {
+                String name = namesById.get(id);
+                if (name != null) {
+                    scanDependencies(name, content, encoding);
+                }
+            }
+            return content;
+        }
+
+        try {
+            return read(templateSource, id, version, encoding);
+        } catch (BackendUnavailableException e) {
+            content = contentCache != null ? contentCache.getAnyVersion(id) : null;
+            if (content == null) {
+                throw e;
+            }
+            LOGGER.warn("Serving earlier version of template " + id + ": " + e.getMessage());
+            return content;
+        }
+    }
+
+    /**
+     * Reads the content of a template version from the backend, caches it and adds it to the snapshot.
+     * 
+     * @param templateSource
+     *            the template source
+     * @param id
+     *            the id of the template
+     * @param version
+     *            the version of the template
+     * @param encoding
+     *            the encoding to scan the content with, or <code>null</code> to scan it when it is read with one
+     * @return the content of the template
+     * @throws IOException
+     *             if the content could not be read
+     */
+    private byte[] read(final Object templateSource, final String id, final String version, final String encoding)
+            throws IOException {
+        return reads.execute(id + "@" + version, new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                OperationMetrics readMetrics = getOperationMetrics("read");
+                long start = readMetrics.start();
+                byte[] read;
+                try {
+                    read = callBackend(new Callable<byte[]>() {
+                        public byte[] call() throws IOException {
+                            return StreamUtil.toByteArray(openContent(templateSource));
+                        }
+                    });
+                } catch (IOException e) {
+                    readMetrics.failure(start);
+                    throw e;
+                }
+                readMetrics.addBytes(read.length);
+                readMetrics.success(start);
+                if (contentCache != null) {
+                    contentCache.put(id, version, read);
+                }
+                String name = namesById.get(id);
+                if (snapshotStore != null && name != null) {
+                    snapshotStore.put(getSnapshotNamespace(), name, id, version, getTemplateLastModified(templateSource), read);
+                }
+                if (name != null && encoding != null) {
+                    scanDependencies(name, read, encoding);
+                } else if (name != null && contentCache != null) {
+                    unscannedIds.put(id, Boolean.TRUE);
+                }
+                return read;
+            }
+        });
+    }
+
+    /**
+     * Records the templates a template includes or imports and prefetches them.
+     * 
+     * @param name
+     *            the name of the template
+     * @param content
+     *            the content of the template
+     * @param encoding
+     *            the encoding of the template
+     */
+    private void scanDependencies(final String name, final byte[] content, final String encoding) {
+        Set<String> dependencies;
+        try {
+            dependencies = TemplateDependencyUtil.getDependencies(name, new String(content, encoding));
+        } catch (UnsupportedEncodingException e) {
+            LOGGER.warn("Could not scan template " + name + " for dependencies, encoding " + encoding + " is not supported");
+            return;
+        }
+        dependencyGraph.setDependencies(name, dependencies);
+        for (String dependency : dependencies) {
+            prefetchDependency(dependency, encoding);
+        }
+    }
+
+    /**
+     * Looks up and reads an included template in the background, unless prefetching is disabled, the template is known or it is
+     * already being prefetched.
+     * 
+     * @param name
+     *            the name of the included template
+     * @param encoding
+     *            the encoding of the including template, or <code>null</code> if not known
+     */
+    private void prefetchDependency(final String name, final String encoding) {
+        if (dependencyPrefetchThreads <= 0) {
+            return;
+        }
+        final String key = getKey(name);
+        if ((staleWhileRevalidate && knownSources.containsKey(key)) || prefetchingDependencies.put(key, Boolean.TRUE) != null) {
+            return;
+        }
+        getDependencyExecutor().submit(inheritThreadState(new Callable<Object>() {
+            public Object call() {
+                try {
+                    Object templateSource = findTemplateSource(name);
+                    if (templateSource != null) {
+                        getContent(templateSource, encoding);
+                    }
+                } catch (IOException e) {
+                    LOGGER.debug("Could not prefetch included template " + name + ": " + e.getMessage());
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Could not prefetch included template " + name, e);
+                } finally {
+                    prefetchingDependencies.remove(key);
+                }
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Returns the metrics of an operation of the loader.
+     * 
+     * @param operation
+     *            the name of the operation
+     * @return the metrics
+     */
+    protected final OperationMetrics getOperationMetrics(final String operation) {
+        return metrics.get(getBackendName(), operation);
+    }
+
+    /**
+     * Calls the backend, within the deadline if one is set, unless the circuit breaker is open. Failed calls and calls that don't finish
+     * in time are recorded with the circuit breaker, a call that doesn't finish in time is interrupted. A call ended by interrupting the
+     * calling thread isn't recorded, but still ends a trial call of the breaker.
+     * 
+     * @param <T>
+     *            the result type of the call
+     * @param call
+     *            the backend call
+     * @return the result of the call
+     * @throws IOException
+     *             if the call failed, or {@link BackendUnavailableException} if the breaker is open or the deadline passed
+     */
+    private <T> T callBackend(final Callable<T> call) throws IOException {
+        if (!circuitBreaker.allowCall()) {
+            throw new BackendUnavailableException("Circuit breaker of " + getClass().getSimpleName() + " is open");
+        }
+        boolean recorded = false;
+        try {
+            T result = callTimeout > 0 ? callWithDeadline(call) : call.call();
+            recorded = true;
+            circuitBreaker.recordSuccess();
+            return result;
+        } catch (IOException e) {
+            // An interrupted caller says nothing about the backend, but socket timeouts are interrupted IO exceptions as well
+            if (!(e instanceof InterruptedIOException) || !Thread.currentThread().isInterrupted()) {
+                recorded = true;
+                circuitBreaker.recordFailure();
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            recorded = true;
+            circuitBreaker.recordFailure();
+            throw e;
+        } catch (Exception e) {
+            recorded = true;
+            circuitBreaker.recordFailure();
+            IOException ioe = new IOException("Backend call failed: " + e);
+            ioe.initCause(e);
+            throw ioe;
+        } finally {
+            if (!recorded) {
+                circuitBreaker.releaseTrial();
+            }
+        }
+    }
+
+    /**
+     * Runs a backend call on the call executor and waits for it until the deadline.
+     * 
+     * @param <T>
+     *            the result type of the call
+     * @param call
+     *            the backend call
+     * @return the result of the call
+     * @throws Exception
+     *             if the call failed, or {@link BackendUnavailableException} if the deadline passed
+     */
+    private <T> T callWithDeadline(final Callable<T> call) throws Exception {
+        Future<T> future = getCallExecutor().submit(inheritThreadState(call));
+        try {
+            return future.get(callTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new BackendUnavailableException(getClass().getSimpleName() + " did not answer within " + callTimeout + " ms");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + getClass().getSimpleName());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw (Error) e.getCause();
+        }
+    }
+
+    /**
+     * Returns what to serve when a template could not be looked up: the last version found by the loader, the fallback template if the
+     * name matches its file name, or <code>null</code> so that the next loader is asked.
+     * 
+     * @param name
+     *            the name of the template
+     * @param cause
+     *            the reason the template could not be looked up
+     * @return the template source to serve, or <code>null</code>
+     * @throws IOException
+     *             if the lookup was interrupted
+     */
+    private Object getFallbackSource(final String name, final Exception cause) throws IOException {
+        if (cause instanceof InterruptedIOException && Thread.currentThread().isInterrupted()) {
+            throw (InterruptedIOException) cause;
+        }
+        Object templateSource = lastFoundSources.get(getKey(name));
+        if (templateSource == null && fallbackTemplate != null
+                && SiteTemplateNameUtil.getTemplateName(name).equals(fallbackTemplate.getFilename())) {
+            templateSource = new FallbackTemplateSource(name, getFallbackContent(), fallbackTemplate.lastModified());
+        }
+        if (cause instanceof BackendUnavailableException) {
+            LOGGER.warn("Could not look up template " + name + ", serving " + templateSource + ": " + cause.getMessage());
+        } else {
+            LOGGER.warn("Could not look up template " + name + ", serving " + templateSource, cause);
+        }
+        return templateSource;
+    }
+
+    /**
+     * @return the content of the fallback template, read on first use
+     * @throws IOException
+     *             if the fallback template could not be read
+     */
+    private synchronized byte[] getFallbackContent() throws IOException {
+        if (fallbackContent == null) {
+            fallbackContent = StreamUtil.toByteArray(fallbackTemplate.getInputStream());
+        }
+        return fallbackContent;
+    }
+
+    /**
+     * Looks up a template in the background, unless it is already being looked up or the backend can't be reached, and swaps the known
+     * source if the template has changed. A source from the snapshot is always swapped, its content is reused if the version is the
+     * same.
+     * 
+     * @param key
+     *            the context key and name of the template
+     * @param name
+     *            the name of the template
+     * @param known
+     *            the currently known source
+     */
+    private void revalidate(final String key, final String name, final KnownSource known) {
+        if (!isAvailable() || circuitBreaker.isOpen() || revalidating.put(key, Boolean.TRUE) != null) {
+            return;
+        }
+        getRevalidationExecutor().submit(inheritThreadState(new Callable<Object>() {
+            public Object call() {
+                try {
+                    Object templateSource = lookup(name);
+                    boolean fromSnapshot = known.templateSource instanceof SnapshotTemplateSource;
+                    if (fromSnapshot || isChanged(known.templateSource, templateSource)) {
+                        if (templateSource != null && !(fromSnapshot && reuseContent((SnapshotTemplateSource) known.templateSource,
+                                templateSource))) {
+                            loadContent(name, templateSource);
+                        }
+                        knownSources.replace(key, known, new KnownSource(templateSource));
+                    }
+                } catch (IOException e) {
+                    LOGGER.warn("Could not revalidate template " + name + ": " + e.getMessage());
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Could not revalidate template " + name, e);
+                } finally {
+                    revalidating.remove(key);
+                }
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Puts the content of a template from the snapshot into the content cache if it is still the current version.
+     * 
+     * @param snapshotSource
+     *            the template source from the snapshot
+     * @param templateSource
+     *            the template source looked up in the backend
+     * @return true if the snapshot content is still current
+     */
+    private boolean reuseContent(final SnapshotTemplateSource snapshotSource, final Object templateSource) {
+        String id = getTemplateId(templateSource);
+        String version = getTemplateVersion(templateSource);
+        if (version == null || !version.equals(snapshotSource.getVersion()) || !id.equals(snapshotSource.getId())) {
+            return false;
+        }
+        if (contentCache != null) {
+            contentCache.put(id, version, snapshotSource.getContent());
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a looked up template source differs from the known one.
+     * 
+     * @param knownSource
+     *            the known template source, may be <code>null</code>
+     * @param templateSource
+     *            the looked up template source, may be <code>null</code>
+     * @return true if the template has been added, removed or modified
+     */
+    private boolean isChanged(final Object knownSource, final Object templateSource) {
+        if (knownSource == null || templateSource == null) {
+            return knownSource != templateSource;
+        }
+        return getLastModified(knownSource) != getLastModified(templateSource);
+    }
+
+    /**
+     * @return the executor revalidating template sources, created on first use
+     */
+    private synchronized ExecutorService getRevalidationExecutor() {
+        if (revalidationExecutor == null) {
+            revalidationExecutor = Executors.newFixedThreadPool(revalidationThreads, new NamedThreadFactory(getClass().getSimpleName()
+                    + "-revalidation"));
+        }
+        return revalidationExecutor;
+    }
+
+    /**
+     * @return the executor running backend calls that have a deadline, created on first use
+     */
+    private synchronized ExecutorService getCallExecutor() {
+        if (callExecutor == null) {
+            callExecutor = Executors.newCachedThreadPool(new NamedThreadFactory(getClass().getSimpleName() + "-call"));
+        }
+        return callExecutor;
+    }
+
+    /**
+     * @return the executor prefetching included templates, created on first use
+     */
+    private synchronized ExecutorService getDependencyExecutor() {
+        if (dependencyExecutor == null) {
+            dependencyExecutor = Executors.newFixedThreadPool(dependencyPrefetchThreads, new NamedThreadFactory(getClass()
+                    .getSimpleName() + "-dependencies"));
+        }
+        return dependencyExecutor;
+    }
+
+    /**
+     * A known template source, <code>null</code> if the template is known to be missing.
+     */
+    private static final class KnownSource {
+
+        /** The template source. */
+        private final Object templateSource;
+
+        /**
+         * @param templateSource
+         *            the template source
+         */
+        private KnownSource(final Object templateSource) {
+            this.templateSource = templateSource;
+        }
+    }
+}
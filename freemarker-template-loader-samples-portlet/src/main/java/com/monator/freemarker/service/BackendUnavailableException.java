@@ -0,0 +1,24 @@
+package com.monator.freemarker.service;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a template loader can't get an answer from its backend, because the call didn't finish in time or the
+ * {@link CircuitBreaker} is open.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class BackendUnavailableException extends IOException {
+
+    /** Serial version. */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message
+     *            the reason the backend is unavailable
+     */
+    public BackendUnavailableException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,151 @@
+package com.monator.freemarker.service;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.chemistry.opencmis.client.api.ChangeEvent;
+import org.apache.chemistry.opencmis.client.api.ChangeEvents;
+import org.apache.chemistry.opencmis.commons.enums.ChangeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Polls the change log of the CMIS repository and tells the {@link CMISFreemarkerTemplateLoader} which objects have changed since the
+ * last poll. One poll is a single request as long as nothing has changed, no matter how many templates the loader has served. Changes
+ * of objects the loader hasn't served are only followed up when objects have been created or updated, with one listing of the template
+ * folder per poll.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class CMISChangeLogWatcher implements Runnable {
+
+    /** Constant to use for logging. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CMISChangeLogWatcher.class);
+
+    /** Factory providing the connection to the repository. */
+    private final CMISConnectionFactory conFactory;
+
+    /** The template loader to notify about changed objects. */
+    private final CMISFreemarkerTemplateLoader templateLoader;
+
+    /** Maximum number of change events to fetch per request. */
+    private final long maxItems;
+
+    /** The change log token up to which changes have been processed, <code>null</code> until the first poll. */
+    private String changeLogToken;
+
+    /** Key of the last processed change event, used to skip it when the repository returns it again. */
+    private String lastEventKey;
+
+    /** Ids of the created or updated objects the template loader hasn't served, kept until the template folder has been listed. */
+    private final Set<String> addedObjectIds = new HashSet<String>();
+
+    /** Set when the repository turns out not to support the change log. */
+    private volatile boolean unsupported;
+
+    /** Time of the last poll that read the change log, zero until the first one. */
+    private volatile long lastPoll;
+
+    /**
+     * Creates a new change log watcher.
+     * 
+     * @param conFactory
+     *            factory providing the connection to the repository
+     * @param templateLoader
+     *            the template loader to notify about changed objects
+     * @param maxItems
+     *            maximum number of change events to fetch per request
+     */
+    public CMISChangeLogWatcher(final CMISConnectionFactory conFactory, final CMISFreemarkerTemplateLoader templateLoader,
+            final long maxItems) {
+        this.conFactory = conFactory;
+        this.templateLoader = templateLoader;
+        this.maxItems = maxItems;
+    }
+
+    /**
+     * Fetches the changes since the last poll and passes the changed object ids to the template loader. The first poll only records the
+     * current change log token.
+     */
+    public final void run() {
+        CMISConnection con = conFactory.getConnection();
+        if (con == null || unsupported) {
+            return;
+        }
+        try {
+            if (changeLogToken == null) {
+                changeLogToken = con.getLatestChangeLogToken();
+                if (changeLogToken == null) {
+                    LOGGER.warn("The repository doesn't provide a change log,"
+                            + " templates will only be refreshed by FreeMarker's update delay");
+                    unsupported = true;
+                } else {
+                    lastPoll = System.currentTimeMillis();
+                }
+                return;
+            }
+
+            boolean hasMoreItems = true;
+            while (hasMoreItems) {
+                ChangeEvents changeEvents = con.getContentChanges(changeLogToken, maxItems);
+                for (ChangeEvent changeEvent : changeEvents.getChangeEvents()) {
+                    String eventKey = getEventKey(changeEvent);
+                    if (!eventKey.equals(lastEventKey)) {
+                        lastEventKey = eventKey;
+                        ChangeType changeType = changeEvent.getChangeType();
+                        if (!templateLoader.objectChanged(changeEvent.getObjectId())
+                                && (changeType == ChangeType.CREATED || changeType == ChangeType.UPDATED)) {
+                            addedObjectIds.add(changeEvent.getObjectId());
+                        }
+                    }
+                }
+
+                String latestToken = changeEvents.getLatestChangeLogToken();
+                hasMoreItems = Boolean.TRUE.equals(changeEvents.getHasMoreItems()) && latestToken != null
+                        && !latestToken.equals(changeLogToken);
+                if (latestToken != null) {
+                    changeLogToken = latestToken;
+                }
+            }
+            if (!addedObjectIds.isEmpty()) {
+                templateLoader.objectsAdded(addedObjectIds);
+                addedObjectIds.clear();
+            }
+            lastPoll = System.currentTimeMillis();
+        } catch (IOException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not read the change log", e);
+        }
+    }
+
+    /**
+     * Checks if the watcher is reading the change log, which it stops doing when the repository has no change log or the polls fail.
+     * 
+     * @param maxAge
+     *            time in milliseconds within which the last poll must have read the change log
+     * @return true if the change log was read within the time
+     */
+    public final boolean isWatching(final long maxAge) {
+        return !unsupported && lastPoll > 0 && System.currentTimeMillis() - lastPoll <= maxAge;
+    }
+
+    /**
+     * Returns a key identifying a change event. Repositories that treat the change log token as inclusive return the last processed
+     * event again on the next poll, the key is used to recognize it.
+     * 
+     * @param changeEvent
+     *            the change event
+     * @return a key for the change event
+     */
+    private String getEventKey(final ChangeEvent changeEvent) {
+        StringBuilder key = new StringBuilder(changeEvent.getObjectId());
+        key.append('|').append(changeEvent.getChangeType());
+        if (changeEvent.getChangeTime() != null) {
+            key.append('|').append(changeEvent.getChangeTime().getTimeInMillis());
+        }
+        return key.toString();
+    }
+}
@@ -1,15 +1,22 @@
 package com.monator.freemarker.service;
 
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.activation.MimetypesFileTypeMap;
 
+import org.apache.chemistry.opencmis.client.api.ChangeEvents;
 import org.apache.chemistry.opencmis.client.api.CmisObject;
 import org.apache.chemistry.opencmis.client.api.Document;
 import org.apache.chemistry.opencmis.client.api.Folder;
 import org.apache.chemistry.opencmis.client.api.ObjectId;
+import org.apache.chemistry.opencmis.client.api.OperationContext;
 import org.apache.chemistry.opencmis.client.api.Session;
 import org.apache.chemistry.opencmis.client.api.SessionFactory;
 import org.apache.chemistry.opencmis.client.runtime.SessionFactoryImpl;
@@ -18,6 +25,7 @@ import org.apache.chemistry.opencmis.commons.SessionParameter;
 import org.apache.chemistry.opencmis.commons.data.ContentStream;
 import org.apache.chemistry.opencmis.commons.enums.BaseTypeId;
 import org.apache.chemistry.opencmis.commons.enums.BindingType;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
 import org.apache.chemistry.opencmis.commons.enums.VersioningState;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisBaseException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisContentAlreadyExistsException;
@@ -28,9 +36,15 @@ import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.monator.freemarker.metrics.OperationMetrics;
+import com.monator.freemarker.metrics.TemplateMetrics;
+
 /**
  * A convinience class that handles the connection against the CMIS repository stated in the <code>freemarker.properties</code> file.
  * 
+ * The calls the template loader makes are counted and timed in the {@link TemplateMetrics} of the connection, under the backend name
+ * <code>cmis-session</code>.
+ * 
  * @author Andreas Magnusson Monator Technologies AB
  * 
  */
@@ -39,11 +53,27 @@ public class CMISConnection {
     /** Constant to use for logging. */
     private static final Logger LOGGER = LoggerFactory.getLogger(CMISConnection.class);
 
+    /** Number of items retrieved per request when listing with the template operation context. */
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    /** The properties needed to serve a template. */
+    private static final Set<String> TEMPLATE_PROPERTIES = new HashSet<String>();
+
+    static {
+        TEMPLATE_PROPERTIES.add(PropertyIds.OBJECT_ID);
+        TEMPLATE_PROPERTIES.add(PropertyIds.OBJECT_TYPE_ID);
+        TEMPLATE_PROPERTIES.add(PropertyIds.BASE_TYPE_ID);
+        TEMPLATE_PROPERTIES.add(PropertyIds.NAME);
+        TEMPLATE_PROPERTIES.add(PropertyIds.CHANGE_TOKEN);
+        TEMPLATE_PROPERTIES.add(PropertyIds.LAST_MODIFICATION_DATE);
+        TEMPLATE_PROPERTIES.add(PropertyIds.CONTENT_STREAM_LENGTH);
+    }
+
     /** Default factory implementation that uses the session parameters when creating the session. */
     private SessionFactory sessionFactory = SessionFactoryImpl.newInstance();
 
-    /** The session that connects to the CMIS repository. */
-    private Session session;
+    /** The sessions that connect to the CMIS repository, render threads are spread over them to avoid contention. */
+    private Session[] sessions;
 
     /** Session parameters. */
     private Map<String, String> parameters = new HashMap<String, String>();
@@ -51,6 +81,12 @@ public class CMISConnection {
     /** Map for storing the FTL mime type. */
     private MimetypesFileTypeMap mimetypesFileTypeMap = new MimetypesFileTypeMap();
 
+    /** Operation context used when looking up templates. */
+    private OperationContext templateContext;
+
+    /** Metrics of the session calls, kept but not published unless shared metrics are set. */
+    private TemplateMetrics metrics = new TemplateMetrics();
+
     /**
      * Creates the connection to the repository using the specified values.
      * 
@@ -59,12 +95,42 @@ public class CMISConnection {
      * @param repositoryPassword
      *            the repository password
      * @param repositoryURL
-     *            the repository URL
+     *            the repository URL, or the class name of the service factory when using the local binding, or of the binding SPI
+     *            when using a custom binding
      * @param repositoryId
      *            the repository ID
+     * @param binding
+     *            the binding to connect with, <code>atompub</code>, <code>browser</code>, <code>local</code> or <code>custom</code>
+     * @param poolSize
+     *            the number of sessions to open
      */
     public CMISConnection(final String repositoryUserName, final String repositoryPassword, final String repositoryURL,
-            final String repositoryId) {
+            final String repositoryId, final String binding, final int poolSize) {
+        this(repositoryUserName, repositoryPassword, repositoryURL, repositoryId, binding, poolSize, new HashMap<String, String>());
+    }
+
+    /**
+     * Creates the connection to the repository using the specified values and additional session parameters, e.g. the settings of the
+     * service factory when using the local binding.
+     * 
+     * @param repositoryUserName
+     *            the repository user name
+     * @param repositoryPassword
+     *            the repository password
+     * @param repositoryURL
+     *            the repository URL, or the class name of the service factory when using the local binding, or of the binding SPI
+     *            when using a custom binding
+     * @param repositoryId
+     *            the repository ID
+     * @param binding
+     *            the binding to connect with, <code>atompub</code>, <code>browser</code>, <code>local</code> or <code>custom</code>
+     * @param poolSize
+     *            the number of sessions to open
+     * @param sessionParameters
+     *            additional session parameters
+     */
+    public CMISConnection(final String repositoryUserName, final String repositoryPassword, final String repositoryURL,
+            final String repositoryId, final String binding, final int poolSize, final Map<String, String> sessionParameters) {
 
         // Add mimetype mapping for ftl file type.
         mimetypesFileTypeMap.addMimeTypes("text/plain ftl FTL");
@@ -74,22 +140,73 @@ public class CMISConnection {
         parameters.put(SessionParameter.PASSWORD, repositoryPassword);
 
         // connection settings
-        parameters.put(SessionParameter.ATOMPUB_URL, repositoryURL);
-        parameters.put(SessionParameter.BINDING_TYPE, BindingType.ATOMPUB.value());
+        BindingType bindingType = BindingType.fromValue(binding);
+        if (bindingType == BindingType.BROWSER) {
+            parameters.put(SessionParameter.BROWSER_URL, repositoryURL);
+        } else if (bindingType == BindingType.LOCAL) {
+            parameters.put(SessionParameter.LOCAL_FACTORY, repositoryURL);
+        } else if (bindingType == BindingType.ATOMPUB) {
+            parameters.put(SessionParameter.ATOMPUB_URL, repositoryURL);
+        } else if (bindingType == BindingType.CUSTOM) {
+            parameters.put(SessionParameter.BINDING_SPI_CLASS, repositoryURL);
+        } else {
+            throw new IllegalArgumentException("Unsupported binding: " + binding);
+        }
+        parameters.put(SessionParameter.BINDING_TYPE, bindingType.value());
         parameters.put(SessionParameter.REPOSITORY_ID, repositoryId);
 
         // session locale
         parameters.put(SessionParameter.LOCALE_ISO3166_COUNTRY, "se");
         parameters.put(SessionParameter.LOCALE_ISO639_LANGUAGE, "sv");
 
-        // create session
-        session = sessionFactory.createSession(parameters);
+        // additional settings
+        parameters.putAll(sessionParameters);
+
+        // create sessions
+        sessions = new Session[Math.max(1, poolSize)];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = sessionFactory.createSession(parameters);
+        }
+        templateContext = createTemplateOperationContext(DEFAULT_PAGE_SIZE);
 
         LOGGER.info("--------------------------------------------------------");
         LOGGER.info("Connection started");
         LOGGER.info("--------------------------------------------------------");
     }
 
+    /**
+     * Returns the session to use for the current thread. Threads are striped over the sessions, so that a thread always uses the same
+     * session while concurrent threads don't share a session's caches and locks.
+     * 
+     * @return the session for the current thread
+     */
+    private Session getSession() {
+
+        return sessions[(int) (Thread.currentThread().getId() % sessions.length)];
+    }
+
+    /**
+     * Sets the metrics to record the session calls in.
+     * 
+     * @param metrics
+     *            the metrics
+     */
+    public final void setMetrics(final TemplateMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the metrics of a session call.
+     * 
+     * @param operation
+     *            the name of the call
+     * @return the metrics
+     */
+    private OperationMetrics getOperationMetrics(final String operation) {
+
+        return metrics.get("cmis-session", operation);
+    }
+
     /**
      * Create a new folder.
      * 
@@ -103,16 +220,16 @@ public class CMISConnection {
         properties.put(PropertyIds.NAME, folderName);
         properties.put(PropertyIds.OBJECT_TYPE_ID, "cmis:folder");
         try {
-            return session.createFolder(properties, session.getObject(parentFolderId));
+            return getSession().createFolder(properties, getSession().getObject(parentFolderId));
         } catch (CmisContentAlreadyExistsException e) {
-            CmisObject object = session.getObject(session.createObjectId(parentFolderId));
+            CmisObject object = getSession().getObject(getSession().createObjectId(parentFolderId));
             if (!(object instanceof Folder)) {
                 throw new IllegalArgumentException(parentFolderId + " is not a folder");
             }
             Folder folder = (Folder) object;
             for (CmisObject o : folder.getChildren()) {
                 if (o.getName().equals(folderName)) {
-                    return session.createObjectId(o.getId());
+                    return getSession().createObjectId(o.getId());
                 }
             }
 
@@ -131,14 +248,14 @@ public class CMISConnection {
      */
     public final CmisObject createFolderStructure(final String folderPath) {
         String[] folderNames = folderPath.split("/");
-        String currentObjectId = session.getObjectByPath("/").getId();
+        String currentObjectId = getSession().getObjectByPath("/").getId();
         String currentPath = "/";
         for (String folder : folderNames) {
             currentPath = currentPath + folder + "/";
             CmisObject currentObject = getObjectByPath(currentPath);
             currentObjectId = currentObject != null ? currentObject.getId() : createFolder(folder, currentObjectId).getId();
         }
-        return session.getObject(currentObjectId);
+        return getSession().getObject(currentObjectId);
     }
 
     /**
@@ -161,10 +278,18 @@ public class CMISConnection {
      * @return The requested object
      */
     public final CmisObject getObjectById(final String nodeId) {
+        OperationMetrics callMetrics = getOperationMetrics("getObject");
+        long start = callMetrics.start();
         try {
-            return session.getObject(nodeId);
+            CmisObject object = getSession().getObject(nodeId);
+            callMetrics.hitOrMiss(start, true);
+            return object;
         } catch (CmisObjectNotFoundException e) {
+            callMetrics.hitOrMiss(start, false);
             return null;
+        } catch (CmisBaseException e) {
+            callMetrics.failure(start);
+            throw e;
         }
     }
 
@@ -176,32 +301,131 @@ public class CMISConnection {
      * @return The requested object
      */
     public final CmisObject getObjectByPath(final String path) {
+        OperationMetrics callMetrics = getOperationMetrics("getObjectByPath");
+        long start = callMetrics.start();
         try {
-            return session.getObjectByPath(path);
+            CmisObject object = getSession().getObjectByPath(path);
+            callMetrics.hitOrMiss(start, true);
+            return object;
         } catch (CmisObjectNotFoundException e) {
+            callMetrics.hitOrMiss(start, false);
             return null;
         } catch (CmisInvalidArgumentException e) {
+            callMetrics.hitOrMiss(start, false);
             return null;
         } catch (CmisRuntimeException e) {
+            callMetrics.hitOrMiss(start, false);
             LOGGER.info("getObjectByPath: Path to object is empty");
             return null;
+        } catch (CmisBaseException e) {
+            callMetrics.failure(start);
+            throw e;
         }
     }
 
     /**
-     * Retrieve a template from a given location.
+     * Retrieve a template from a given location. Only the properties needed to serve the template are fetched.
      * 
      * @param path
      *            The path to the template document
      * @return The template document
      */
     public final Document getTemplate(final String path) {
-
+        OperationMetrics callMetrics = getOperationMetrics("getTemplate");
+        long start = callMetrics.start();
         try {
-            Document template = (Document) session.getObjectByPath(path);
+            Document template = (Document) getSession().getObjectByPath(path, templateContext);
+            callMetrics.hitOrMiss(start, true);
             return template;
         } catch (CmisObjectNotFoundException e) {
+            callMetrics.hitOrMiss(start, false);
             return null;
+        } catch (CmisBaseException e) {
+            callMetrics.failure(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Retrieves all documents in a folder. Only the properties needed to serve templates are fetched, and the children are listed in
+     * pages of the given size.
+     * 
+     * @param folder
+     *            The folder to list
+     * @param pageSize
+     *            The number of children to retrieve per request
+     * @return The documents in the folder
+     */
+    public final List<Document> getDocuments(final Folder folder, final int pageSize) {
+        OperationMetrics callMetrics = getOperationMetrics("getChildren");
+        long start = callMetrics.start();
+        List<Document> documents = new ArrayList<Document>();
+        try {
+            for (CmisObject child : folder.getChildren(createTemplateOperationContext(pageSize))) {
+                if (child instanceof Document) {
+                    documents.add((Document) child);
+                }
+            }
+        } catch (CmisBaseException e) {
+            callMetrics.failure(start);
+            throw e;
+        }
+        callMetrics.success(start);
+        return documents;
+    }
+
+    /**
+     * Creates an operation context that only requests the properties needed to serve templates, without ACLs, allowable actions,
+     * policies, relationships or renditions. The session cache is bypassed, the template loaders keep their own caches and a cached
+     * object would hide changes from FreeMarker's update checks.
+     * 
+     * @param pageSize
+     *            The number of items to retrieve per request when listing
+     * @return The operation context
+     */
+    private OperationContext createTemplateOperationContext(final int pageSize) {
+
+        return getSession().createOperationContext(TEMPLATE_PROPERTIES, false, false, false, IncludeRelationships.NONE,
+                Collections.singleton("cmis:none"), false, null, false, pageSize);
+    }
+
+    /**
+     * Retrieves the latest change log token of the repository.
+     * 
+     * @return the latest change log token or <code>null</code> if the repository doesn't provide a change log
+     */
+    public final String getLatestChangeLogToken() {
+        OperationMetrics callMetrics = getOperationMetrics("getRepositoryInfo");
+        long start = callMetrics.start();
+        try {
+            String changeLogToken = getSession().getRepositoryInfo().getLatestChangeLogToken();
+            callMetrics.success(start);
+            return changeLogToken;
+        } catch (CmisBaseException e) {
+            callMetrics.failure(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Retrieves the changes made in the repository since the given change log token.
+     * 
+     * @param changeLogToken
+     *            the change log token to start from
+     * @param maxItems
+     *            maximum number of change events to retrieve
+     * @return the change events
+     */
+    public final ChangeEvents getContentChanges(final String changeLogToken, final long maxItems) {
+        OperationMetrics callMetrics = getOperationMetrics("getContentChanges");
+        long start = callMetrics.start();
+        try {
+            ChangeEvents changeEvents = getSession().getContentChanges(changeLogToken, false, maxItems);
+            callMetrics.success(start);
+            return changeEvents;
+        } catch (CmisBaseException e) {
+            callMetrics.failure(start);
+            throw e;
         }
     }
 
@@ -244,7 +468,7 @@ public class CMISConnection {
         // Insert new document
         ObjectId createdObjectId = null;
         try {
-            Folder folder = (Folder) session.getObject(folderId);
+            Folder folder = (Folder) getSession().getObject(folderId);
 
             Map<String, String> properties = new HashMap<String, String>();
             properties.put(PropertyIds.NAME, fileName);
@@ -253,7 +477,7 @@ public class CMISConnection {
             LOGGER.info("CreateDocument: " + mimetypesFileTypeMap.getContentType(mimeType));
 
             ContentStream contentStream = createContentStream(fileContent, mimeType, fileName);
-            createdObjectId = session.createDocument(properties, session.createObjectId(folder.getId()), contentStream,
+            createdObjectId = getSession().createDocument(properties, getSession().createObjectId(folder.getId()), contentStream,
                     VersioningState.MAJOR, null, null, null);
 
         } catch (CmisBaseException e) {
@@ -336,7 +560,7 @@ public class CMISConnection {
     public final void deleteNode(final String nodeId) {
 
         try {
-            CmisObject object = session.getObject(nodeId);
+            CmisObject object = getSession().getObject(nodeId);
 
             if (object.getBaseTypeId().equals(BaseTypeId.CMIS_DOCUMENT)) {
                 Document doc = (Document) object;
@@ -1,50 +1,237 @@
 package com.monator.freemarker.service;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.apache.chemistry.opencmis.commons.exceptions.CmisConnectionException;
-import org.apache.chemistry.opencmis.commons.exceptions.CmisUnauthorizedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.monator.freemarker.metrics.TemplateMetrics;
+import com.monator.freemarker.util.NamedThreadFactory;
+
 /**
- * A factory for creating a connection to the repository using CMIS.
+ * A factory for creating a connection to the repository using CMIS. The factory is meant to be shared by all template loaders, the
+ * connection is created once and holds a pool of sessions that the render threads are spread over.
+ * 
+ * The connection is created in the background, retrying with exponential backoff until the repository can be reached, so that a slow
+ * or unreachable repository never holds up the deployment of the portlet. Until then {@link #getConnection()} returns
+ * <code>null</code>.
  * 
  * @author Andreas Magnusson Monator Technologies AB
  * 
  */
 public class CMISConnectionFactory {
 
+    /** Prefix of the settings in <code>freemarker.properties</code> passed on to the CMIS session as they are. */
+    private static final String SESSION_PARAMETER_PREFIX = "repository.session.parameter.";
+
     /** The connection to the repository using CMIS. */
-    private CMISConnection con;
+    private volatile CMISConnection con;
+
+    /** The settings read from <code>freemarker.properties</code>. */
+    private final Properties props = new Properties();
+
+    /** Executor creating the connection in the background. */
+    private final ScheduledExecutorService connectExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(
+            "cmis-connect"));
+
+    /** Set when the background connect has been started. */
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /** Tasks to run once the connection has been created, only accessed by the connect thread. */
+    private final List<Runnable> connectedTasks = new ArrayList<Runnable>();
+
+    /** Delay in milliseconds before the next connection attempt. */
+    private long retryDelay;
+
+    /** Minimum delay in milliseconds between connection attempts. */
+    private long minRetryDelay;
+
+    /** Maximum delay in milliseconds between connection attempts. */
+    private long maxRetryDelay;
+
+    /** Metrics to record the session calls of the connection in, <code>null</code> if not set. */
+    private volatile TemplateMetrics metrics;
 
     /** Constant to use for logging. */
     private static final Logger LOGGER = LoggerFactory.getLogger(CMISConnectionFactory.class);
 
     /**
-     * Creates a connection to the repository if there isn't already one.
+     * Creates a new factory using the settings in <code>freemarker.properties</code>.
+     */
+    public CMISConnectionFactory() {
+        this(loadProperties());
+    }
+
+    /**
+     * Creates a new factory using the given settings, with the same keys as in <code>freemarker.properties</code>.
+     * 
+     * @param settings
+     *            the settings
+     */
+    public CMISConnectionFactory(final Properties settings) {
+        props.putAll(settings);
+        minRetryDelay = Long.parseLong(props.getProperty("repository.connect.retry.min.seconds", "1")) * 1000;
+        maxRetryDelay = Long.parseLong(props.getProperty("repository.connect.retry.max.seconds", "60")) * 1000;
+        retryDelay = minRetryDelay;
+    }
+
+    /**
+     * Sets the metrics to record the session calls of the connection in.
+     * 
+     * @param metrics
+     *            the metrics
+     */
+    public void setMetrics(final TemplateMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts creating the connection in the background, if not already started.
+     */
+    public void start() {
+        if (started.compareAndSet(false, true)) {
+            connectExecutor.execute(new Runnable() {
+                public void run() {
+                    connect();
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops connecting and any tasks waiting for the connection.
+     */
+    public void destroy() {
+        connectExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the connection to the repository without waiting for it to be created.
      * 
-     * @return the CMIS connection to the repository
+     * @return the CMIS connection to the repository, or <code>null</code> if it hasn't been created yet
      */
     public CMISConnection getConnection() {
-        Properties props = new Properties();
-
-        if (con != null) {
-            return con;
-        } else {
-            try {
-                props.load(CMISConnectionFactory.class.getClassLoader().getResourceAsStream("freemarker.properties"));
-                con = new CMISConnection(props.getProperty("repository.user.name"), props.getProperty("repository.password"),
-                        props.getProperty("repository.url"), props.getProperty("repository.id"));
-            } catch (CmisConnectionException e) {
-                LOGGER.info("Could not create a Cmis connection: " + e.getMessage());
-            } catch (CmisUnauthorizedException e) {
-                LOGGER.info("Could not create a Cmis connection: " + e.getMessage());
-            } catch (IOException e) {
-                e.printStackTrace();
+        CMISConnection connection = con;
+        if (connection == null) {
+            start();
+        }
+        return connection;
+    }
+
+    /**
+     * @return the configured URL of the repository
+     */
+    public String getRepositoryUrl() {
+        return props.getProperty("repository.url");
+    }
+
+    /**
+     * @return the configured id of the repository
+     */
+    public String getRepositoryId() {
+        return props.getProperty("repository.id");
+    }
+
+    /**
+     * Runs a task in the background once the connection has been created, or right away if it already has.
+     * 
+     * @param task
+     *            the task to run
+     */
+    public void whenConnected(final Runnable task) {
+        connectExecutor.execute(new Runnable() {
+            public void run() {
+                if (con != null) {
+                    runConnectedTask(task);
+                } else {
+                    connectedTasks.add(task);
+                }
+            }
+        });
+        start();
+    }
+
+    /**
+     * Tries to create the connection. On failure a new attempt is scheduled with twice the delay, up to the maximum delay. Once
+     * connected, the tasks waiting for the connection are run.
+     */
+    private void connect() {
+        try {
+            CMISConnection connection = new CMISConnection(props.getProperty("repository.user.name"),
+                    props.getProperty("repository.password"), props.getProperty("repository.url"), props.getProperty("repository.id"),
+                    props.getProperty("repository.binding", "atompub"),
+                    Integer.parseInt(props.getProperty("repository.session.pool.size", "1")), getSessionParameters());
+            if (metrics != null) {
+                connection.setMetrics(metrics);
+            }
+            con = connection;
+        } catch (RuntimeException e) {
+            LOGGER.info("Could not create a Cmis connection, retrying in " + retryDelay + " ms: " + e.getMessage());
+            connectExecutor.schedule(new Runnable() {
+                public void run() {
+                    connect();
+                }
+            }, retryDelay, TimeUnit.MILLISECONDS);
+            retryDelay = Math.min(retryDelay * 2, maxRetryDelay);
+            return;
+        }
+
+        for (Runnable task : connectedTasks) {
+            runConnectedTask(task);
+        }
+        connectedTasks.clear();
+    }
+
+    /**
+     * @return the settings starting with {@link #SESSION_PARAMETER_PREFIX}, without the prefix
+     */
+    private Map<String, String> getSessionParameters() {
+        Map<String, String> sessionParameters = new HashMap<String, String>();
+        for (Object key : props.keySet()) {
+            String name = (String) key;
+            if (name.startsWith(SESSION_PARAMETER_PREFIX)) {
+                sessionParameters.put(name.substring(SESSION_PARAMETER_PREFIX.length()), props.getProperty(name));
             }
-            return con;
         }
+        return sessionParameters;
+    }
+
+    /**
+     * Runs a task waiting for the connection, making sure a failing task doesn't keep the others from running.
+     * 
+     * @param task
+     *            the task to run
+     */
+    private void runConnectedTask(final Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Task waiting for the Cmis connection failed", e);
+        }
+    }
+
+    /**
+     * @return the settings in <code>freemarker.properties</code>
+     */
+    private static Properties loadProperties() {
+        Properties settings = new Properties();
+        InputStream is = CMISConnectionFactory.class.getClassLoader().getResourceAsStream("freemarker.properties");
+        try {
+            settings.load(is);
+            is.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return settings;
     }
 }
@@ -2,15 +2,31 @@ package com.monator.freemarker.service;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.chemistry.opencmis.client.api.CmisObject;
 import org.apache.chemistry.opencmis.client.api.Document;
+import org.apache.chemistry.opencmis.client.api.Folder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.Resource;
 
+import com.monator.freemarker.util.FreemarkerConstants;
+import com.monator.freemarker.util.NamedThreadFactory;
+import com.monator.freemarker.util.SiteTemplateNameUtil;
+
 import freemarker.cache.TemplateLoader;
 
 /**
@@ -19,7 +35,13 @@ import freemarker.cache.TemplateLoader;
  * @author Andreas Magnusson Monator Technologies AB
  * 
  */
-public class CMISFreemarkerTemplateLoader implements TemplateLoader {
+public class CMISFreemarkerTemplateLoader extends AbstractFreemarkerTemplateLoader {
+
+    /** Maximum number of change events fetched per change log request. */
+    private static final long CHANGE_LOG_PAGE_SIZE = 100;
+
+    /** Number of folder children fetched per request when listing the template folder. */
+    private static final int LIST_PAGE_SIZE = 100;
 
     /** Path to the folder where your templates lies. */
     private String template_folder_path;
@@ -30,11 +52,44 @@ public class CMISFreemarkerTemplateLoader implements TemplateLoader {
     /** Default template which will be copied to the created folder path if create_folder is true. */
     private Resource default_template;
 
-    /** Factory class for constructing CMIS connections. */
-    private CMISConnectionFactory conFactory = new CMISConnectionFactory();
+    /** Factory class providing the shared CMIS connection. */
+    private CMISConnectionFactory conFactory;
+
+    /** Time in milliseconds a resolved template folder is reused, zero or less disables the folder cache. */
+    private long folderCacheTtl;
+
+    /** The resolved template folder, <code>null</code> until resolved. */
+    private volatile Folder templateFolder;
+
+    /** Time when the resolved template folder has to be resolved again. */
+    private volatile long templateFolderExpires;
+
+    /** Cache for names of missing templates, <code>null</code> when negative caching is disabled. */
+    private NegativeLookupCache negativeCache;
+
+    /** Index of the template names in the template folder, <code>null</code> when disabled. */
+    private TemplateNameIndex nameIndex;
+
+    /** Coalesces concurrent listings of the template folder. */
+    private final SingleFlight<List<Document>> listings = new SingleFlight<List<Document>>();
+
+    /** Interval in seconds between change log polls, zero or less disables the change log watcher. */
+    private long changeLogPollInterval;
+
+    /** Executor running the change log watcher, <code>null</code> when not started. */
+    private ScheduledExecutorService changeLogExecutor;
 
-    /** The connection to the repository using CMIS. */
-    private CMISConnection con = conFactory.getConnection();
+    /** The change log watcher, <code>null</code> when not started. */
+    private CMISChangeLogWatcher changeLogWatcher;
+
+    /** Determines if the template folder should be prefetched when the loader is initialized. */
+    private boolean prefetchOnStartup;
+
+    /** Number of templates fetched in parallel when prefetching. */
+    private int prefetchConcurrency = 1;
+
+    /** Prefetched templates by name, handed out by {@link #findTemplateSource(String)} instead of looking them up. */
+    private Map<String, Document> prefetchedSources = new ConcurrentHashMap<String, Document>();
 
     /** Constant to use for logging. */
     private static final Logger LOGGER = LoggerFactory.getLogger(CMISFreemarkerTemplateLoader.class);
@@ -55,17 +110,190 @@ public class CMISFreemarkerTemplateLoader implements TemplateLoader {
         this.default_template = defaultTemplate;
     }
 
+    /**
+     * Sets the factory providing the connection to the repository, shared by all CMIS template loaders.
+     * 
+     * @param conFactory
+     *            the connection factory
+     */
+    public final void setConnectionFactory(final CMISConnectionFactory conFactory) {
+        this.conFactory = conFactory;
+    }
+
+    /**
+     * Sets how long the resolved template folder is reused before it is looked up in the repository again.
+     * 
+     * @param seconds
+     *            time to live in seconds, zero or less looks up the folder on every call
+     */
+    public final void setFolderCacheTtlSeconds(final long seconds) {
+        this.folderCacheTtl = seconds * 1000;
+    }
+
+    /**
+     * Sets how long a template that could not be found is remembered as missing.
+     * 
+     * @param seconds
+     *            time to live in seconds, zero or less disables the negative cache
+     */
+    public final void setNegativeCacheTtlSeconds(final long seconds) {
+        this.negativeCache = seconds > 0 ? new NegativeLookupCache(seconds * 1000) : null;
+    }
+
+    /**
+     * Sets how long a listing of the template folder is used to answer lookups of names that aren't in the folder, e.g. the localized
+     * variants FreeMarker probes for, without a call to the repository. With the change log watcher running, the listing is dropped as
+     * soon as a template is added to the folder.
+     * 
+     * @param seconds
+     *            time to live in seconds, zero or less disables the name index
+     */
+    public final void setNameIndexTtlSeconds(final long seconds) {
+        this.nameIndex = seconds > 0 ? new TemplateNameIndex(seconds * 1000) : null;
+    }
+
+    /**
+     * Sets the interval between polls of the repository's change log. When the watcher is running, changed templates are evicted and
+     * reported to the {@link TemplateChangeListener}s, so FreeMarker's update delay can be set very long.
+     * 
+     * @param seconds
+     *            interval in seconds, zero or less disables the change log watcher
+     */
+    public final void setChangeLogPollSeconds(final long seconds) {
+        this.changeLogPollInterval = seconds;
+    }
+
+    /**
+     * Determines if the template folder should be prefetched when the loader is initialized, see {@link #prefetch()}.
+     * 
+     * @param prefetchOnStartup
+     *            if true, the templates are prefetched on startup
+     */
+    public final void setPrefetchOnStartup(final boolean prefetchOnStartup) {
+        this.prefetchOnStartup = prefetchOnStartup;
+    }
+
+    /**
+     * Sets the number of templates fetched in parallel when prefetching.
+     * 
+     * @param prefetchConcurrency
+     *            the number of parallel fetches
+     */
+    public final void setPrefetchConcurrency(final int prefetchConcurrency) {
+        this.prefetchConcurrency = Math.max(1, prefetchConcurrency);
+    }
+
+    /**
+     * Starts connecting to the repository in the background. Once connected, the template folder is prefetched if enabled and FreeMarker
+     * is told to look up the templates again, since they have been served by the next loader while the connection was missing. The
+     * change log watcher is started if enabled.
+     */
+    public final void init() {
+        if (conFactory == null) {
+            conFactory = new CMISConnectionFactory();
+        }
+        conFactory.whenConnected(new Runnable() {
+            public void run() {
+                if (prefetchOnStartup) {
+                    prefetch();
+                }
+                fireTemplateChanged(null);
+            }
+        });
+        if (changeLogPollInterval > 0) {
+            changeLogWatcher = new CMISChangeLogWatcher(conFactory, this, CHANGE_LOG_PAGE_SIZE);
+            changeLogExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("cmis-change-log"));
+            changeLogExecutor.scheduleWithFixedDelay(changeLogWatcher, 0, changeLogPollInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops the change log watcher and the background revalidation.
+     */
+    public final void destroy() {
+        if (changeLogExecutor != null) {
+            changeLogExecutor.shutdownNow();
+        }
+        super.destroy();
+    }
+
+    /**
+     * Lists the template folder once and loads the metadata and content of every template into the loader's caches, so that the first
+     * requests after a restart don't have to look up each template. The content is fetched in parallel by
+     * <code>prefetchConcurrency</code> threads.
+     * 
+     * A prefetched template is handed out again only while the change log watcher is reading the change log. Otherwise it is handed out
+     * once, later lookups go to the repository as usual so that FreeMarker's update checks still see changes.
+     */
+    public final void prefetch() {
+        long start = System.currentTimeMillis();
+        CMISConnection con = conFactory.getConnection();
+        Folder folder = con != null ? getTemplateFolder(con) : null;
+        if (folder == null) {
+            LOGGER.info("No template folder to prefetch");
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(prefetchConcurrency, new NamedThreadFactory("cmis-prefetch"));
+        List<Future<Long>> fetches = new ArrayList<Future<Long>>();
+        try {
+            for (final Document document : listTemplateFolder(con, folder)) {
+                if (document.getName().endsWith(FreemarkerConstants.TEMPLATE_SUFFIX)) {
+                    fetches.add(executor.submit(new Callable<Long>() {
+                        public Long call() throws IOException {
+                            return Long.valueOf(prefetchTemplate(document));
+                        }
+                    }));
+                }
+            }
+
+            int templates = 0;
+            long bytes = 0;
+            for (Future<Long> fetch : fetches) {
+                try {
+                    bytes += fetch.get().longValue();
+                    templates++;
+                } catch (ExecutionException e) {
+                    LOGGER.warn("Could not prefetch template: " + e.getCause().getMessage());
+                }
+            }
+            LOGGER.info("Prefetched " + templates + " templates (" + bytes + " bytes) in " + (System.currentTimeMillis() - start)
+                    + " ms");
+        } catch (IOException e) {
+            LOGGER.warn("Could not list the template folder: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * Uses Apache OpenCMIS's API through a convenience class, {@link CMISConnection}, to fetch the template from the repository. Folder
-     * path is created if missing, depending on the value of <code>create_folder</code>.
+     * path is created if missing, depending on the value of <code>create_folder</code>. All Sites share the templates in the folder, so
+     * a name qualified with the requesting Site is looked up without the qualification.
      * 
      * {@inheritDoc}
      */
-    public final Object findTemplateSource(final String name) throws IOException {
+    protected final Object lookupTemplateSource(final String requestedName) throws IOException {
         Object fmTemplate = null;
+        String name = SiteTemplateNameUtil.getTemplateName(requestedName);
+        if (negativeCache != null && negativeCache.isMissing(name)) {
+            return fmTemplate;
+        }
+        Document prefetched = isWatchingChanges() ? prefetchedSources.get(name) : prefetchedSources.remove(name);
+        if (prefetched != null) {
+            return prefetched;
+        }
+        CMISConnection con = conFactory.getConnection();
+        if (con == null) {
+            LOGGER.debug("No connection to the repository yet, trying next loader for " + name);
+            return fmTemplate;
+        }
         String fullPath = "/" + template_folder_path + "/" + name;
-        if (con.getFolderByPath("/" + template_folder_path) == null) {
-            if (create_folder) {
+        Folder folder = getTemplateFolder(con);
+        if (folder == null) {
+            if (create_folder && isCreationAllowed()) {
                 LOGGER.info("No folder with that name exists, creating one automatically");
                 con.createFolderStructure(template_folder_path);
                 LOGGER.info("Creating file!");
@@ -77,33 +305,280 @@ public class CMISFreemarkerTemplateLoader implements TemplateLoader {
                 // If the folder doesn't exist return an empty template.
                 return fmTemplate;
             }
+        } else if (!isListed(con, folder, name)) {
+            LOGGER.debug("No template with name " + name + " in the template folder listing, trying next loader");
+            return fmTemplate;
+        }
+        Document document = con.getTemplate(fullPath);
+        if (document == null && negativeCache != null) {
+            negativeCache.markMissing(name);
         }
-        fmTemplate = con.getTemplate(fullPath);
+        fmTemplate = document;
 
         return fmTemplate;
     }
 
+    /**
+     * Lists the template folder, or returns no names while there is no connection to the repository.
+     * 
+     * {@inheritDoc}
+     */
+    protected final List<String> listTemplateNames() throws IOException {
+        List<String> names = new ArrayList<String>();
+        CMISConnection con = conFactory.getConnection();
+        Folder folder = con != null ? getTemplateFolder(con) : null;
+        if (folder == null) {
+            return names;
+        }
+        for (Document document : listTemplateFolder(con, folder)) {
+            if (document.getName().endsWith(FreemarkerConstants.TEMPLATE_SUFFIX)) {
+                names.add(document.getName());
+            }
+        }
+        return names;
+    }
+
     /* (non-Javadoc)
-     * @see freemarker.cache.TemplateLoader#getLastModified(java.lang.Object)
+     * @see com.monator.freemarker.service.AbstractFreemarkerTemplateLoader#getTemplateLastModified(java.lang.Object)
      */
-    public final long getLastModified(final Object templateSource) {
+    protected final long getTemplateLastModified(final Object templateSource) {
 
         return ((CmisObject) templateSource).getLastModificationDate().getTimeInMillis();
     }
 
+    /**
+     * Returns the object id without version label, see {@link #getObjectIdWithoutVersion(String)}.
+     * 
+     * {@inheritDoc}
+     */
+    protected final String getTemplateId(final Object templateSource) {
+        return getObjectIdWithoutVersion(((Document) templateSource).getId());
+    }
+
+    /**
+     * Returns the change token when the repository supports it, otherwise the last modification date.
+     * 
+     * {@inheritDoc}
+     */
+    protected final String getTemplateVersion(final Object templateSource) {
+        Document document = (Document) templateSource;
+        if (document.getChangeToken() != null) {
+            return document.getChangeToken();
+        }
+        if (document.getLastModificationDate() != null) {
+            return String.valueOf(document.getLastModificationDate().getTimeInMillis());
+        }
+        return null;
+    }
+
     /* (non-Javadoc)
-     * @see freemarker.cache.TemplateLoader#getReader(java.lang.Object, java.lang.String)
+     * @see com.monator.freemarker.service.AbstractFreemarkerTemplateLoader#openContent(java.lang.Object)
      */
-    public final Reader getReader(Object templateSource, final String encoding) throws IOException {
+    protected final InputStream openContent(final Object templateSource) throws IOException {
+        return ((Document) templateSource).getContentStream().getStream();
+    }
 
-        return new InputStreamReader(((Document) templateSource).getContentStream().getStream(), encoding);
+    /**
+     * Uses the repository URL and the template folder path, so that a snapshot taken from another repository is never served.
+     * 
+     * {@inheritDoc}
+     */
+    protected final String getSnapshotNamespace() {
+        return "cmis:" + conFactory.getRepositoryUrl() + "#" + conFactory.getRepositoryId() + ":" + template_folder_path;
     }
 
     /* (non-Javadoc)
-     * @see freemarker.cache.TemplateLoader#closeTemplateSource(java.lang.Object)
+     * @see com.monator.freemarker.service.AbstractFreemarkerTemplateLoader#getBackendName()
+     */
+    protected final String getBackendName() {
+        return "cmis";
+    }
+
+    /**
+     * The repository can be reached once the connection has been created.
+     * 
+     * {@inheritDoc}
+     */
+    protected final boolean isAvailable() {
+        return conFactory.getConnection() != null;
+    }
+
+    /**
+     * Registers a listed template document as prefetched and reads its content into the content cache.
+     * 
+     * @param document
+     *            the template document
+     * @return the number of content bytes read
+     * @throws IOException
+     *             if the content could not be read
+     */
+    private long prefetchTemplate(final Document document) throws IOException {
+        prefetchedSources.put(document.getName(), document);
+        return loadContent(document.getName(), document);
+    }
+
+    /**
+     * Called by the {@link CMISChangeLogWatcher} for every object that has changed in the repository. Cached data of a template that
+     * has been served is evicted and the listeners are notified, without any call to the repository.
+     * 
+     * @param objectId
+     *            the id of the changed object
+     * @return true if the object is a template that has been served, false if it is unknown to the loader
+     */
+    final boolean objectChanged(final String objectId) {
+        String name = forgetTemplate(getObjectIdWithoutVersion(objectId));
+        if (name == null) {
+            return false;
+        }
+        if (nameIndex != null) {
+            nameIndex.clear();
+        }
+        templateChanged(name);
+        return true;
+    }
+
+    /**
+     * Called by the {@link CMISChangeLogWatcher} once per poll with the objects created or updated since the last poll that haven't
+     * been served, since they may replace a missing template. Instead of looking up each object, the template folder is listed once
+     * and the listed documents among the objects are treated as changed templates.
+     * 
+     * @param objectIds
+     *            the ids of the objects
+     * @throws IOException
+     *             if the listing was interrupted
+     */
+    final void objectsAdded(final Set<String> objectIds) throws IOException {
+        CMISConnection con = conFactory.getConnection();
+        Folder folder = con != null ? getTemplateFolder(con) : null;
+        if (folder == null) {
+            return;
+        }
+        Set<String> ids = new HashSet<String>();
+        for (String objectId : objectIds) {
+            ids.add(getObjectIdWithoutVersion(objectId));
+        }
+        if (nameIndex != null) {
+            nameIndex.remove(folder.getId());
+        }
+        for (Document document : listTemplateFolder(con, folder)) {
+            if (ids.contains(getObjectIdWithoutVersion(document.getId()))) {
+                templateChanged(document.getName());
+            }
+        }
+    }
+
+    /**
+     * Checks if the change log watcher has read the change log within the last two poll intervals, so that changed templates are
+     * evicted from the prefetched templates.
+     * 
+     * @return true if the change log watcher is reading the change log
+     */
+    private boolean isWatchingChanges() {
+        return changeLogWatcher != null && changeLogWatcher.isWatching(changeLogPollInterval * 2000);
+    }
+
+    /**
+     * Checks the name index for a template name, listing the template folder first if the index has no fresh listing of it. The
+     * listing only holds the documents directly in the template folder, so names in subfolders, like <code>lib/macros.ftl</code>, are
+     * always looked up.
+     * 
+     * @param con
+     *            the connection to the repository
+     * @param folder
+     *            the template folder
+     * @param name
+     *            the name of the template
+     * @return true if the template may exist and has to be looked up, false if it is known to be missing
+     * @throws IOException
+     *             if the listing was interrupted
+     */
+    private boolean isListed(final CMISConnection con, final Folder folder, final String name) throws IOException {
+        if (nameIndex == null || name.indexOf('/') >= 0) {
+            return true;
+        }
+        Boolean listed = nameIndex.contains(folder.getId(), name);
+        if (listed == null) {
+            listTemplateFolder(con, folder);
+            listed = nameIndex.contains(folder.getId(), name);
+        }
+        return listed == null || listed.booleanValue();
+    }
+
+    /**
+     * Lists the documents in the template folder and stores their names in the name index. Concurrent listings share one call to the
+     * repository.
+     * 
+     * @param con
+     *            the connection to the repository
+     * @param folder
+     *            the template folder
+     * @return the documents in the template folder
+     * @throws IOException
+     *             if the listing was interrupted
      */
-    public final void closeTemplateSource(final Object templateSource) throws IOException {
-        // Do nothing
+    private List<Document> listTemplateFolder(final CMISConnection con, final Folder folder) throws IOException {
+        return listings.execute(folder.getId(), new Callable<List<Document>>() {
+            public List<Document> call() {
+                List<Document> documents = con.getDocuments(folder, LIST_PAGE_SIZE);
+                if (nameIndex != null) {
+                    List<String> names = new ArrayList<String>(documents.size());
+                    for (Document document : documents) {
+                        names.add(document.getName());
+                    }
+                    nameIndex.put(folder.getId(), names);
+                }
+                return documents;
+            }
+        });
+    }
+
+    /**
+     * Evicts the prefetched document and the negative cache entry of a changed template and notifies the listeners.
+     * 
+     * @param name
+     *            the name of the template
+     */
+    private void templateChanged(final String name) {
+        prefetchedSources.remove(name);
+        if (negativeCache != null) {
+            negativeCache.remove(name);
+        }
+        fireTemplateChanged(name);
+    }
+
+    /**
+     * Strips the version label that some repositories append to object ids, since change events may refer to another version of the
+     * document than the one that was served.
+     * 
+     * @param objectId
+     *            the object id
+     * @return the object id without version label
+     */
+    private String getObjectIdWithoutVersion(final String objectId) {
+        int versionSeparator = objectId.indexOf(';');
+        return versionSeparator < 0 ? objectId : objectId.substring(0, versionSeparator);
+    }
+
+    /**
+     * Returns the template folder, reusing the last resolved folder while the folder cache time to live has not passed. A missing folder
+     * is never cached, so that it is created as soon as it is needed.
+     * 
+     * @param con
+     *            the connection to the repository
+     * @return the template folder or <code>null</code> if it doesn't exist
+     */
+    private Folder getTemplateFolder(final CMISConnection con) {
+        Folder folder = templateFolder;
+        long now = System.currentTimeMillis();
+        if (folder != null && now < templateFolderExpires) {
+            return folder;
+        }
+        folder = con.getFolderByPath("/" + template_folder_path);
+        if (folder != null && folderCacheTtl > 0) {
+            templateFolderExpires = now + folderCacheTtl;
+            templateFolder = folder;
+        }
+        return folder;
     }
 
 }
@@ -0,0 +1,129 @@
+package com.monator.freemarker.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A circuit breaker for the calls of a template loader to its backend. After a number of failed calls in a row the breaker opens and
+ * calls are refused right away, so that render threads don't pile up behind a backend that is down. Once the open time has passed, a
+ * single trial call is let through. If it succeeds the breaker closes, otherwise it stays open for another period.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public final class CircuitBreaker {
+
+    /** Constant to use for logging. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /** Name of the backend, used when logging. */
+    private final String name;
+
+    /** Number of failed calls in a row that opens the breaker, zero or less disables the breaker. */
+    private int failureThreshold;
+
+    /** Time in milliseconds the breaker stays open before a trial call is let through. */
+    private long openTime;
+
+    /** Number of failed calls in a row. */
+    private int failures;
+
+    /** Time the breaker was last opened. */
+    private long openedAt;
+
+    /** Set while a trial call is running. */
+    private boolean trialRunning;
+
+    /**
+     * Creates a new, disabled circuit breaker.
+     * 
+     * @param name
+     *            name of the backend, used when logging
+     */
+    public CircuitBreaker(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * Sets the number of failed calls in a row that opens the breaker.
+     * 
+     * @param failureThreshold
+     *            the number of failures, zero or less disables the breaker
+     */
+    public synchronized void setFailureThreshold(final int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Sets the time the breaker stays open before a trial call is let through.
+     * 
+     * @param openTime
+     *            time in milliseconds
+     */
+    public synchronized void setOpenTime(final long openTime) {
+        this.openTime = openTime;
+    }
+
+    /**
+     * Checks if a call may be made. While the breaker is open only one trial call is allowed per open period.
+     * 
+     * @return true if the call may be made
+     */
+    public synchronized boolean allowCall() {
+        if (!isTripped()) {
+            return true;
+        }
+        if (!trialRunning && System.currentTimeMillis() - openedAt >= openTime) {
+            trialRunning = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if calls are currently refused
+     */
+    public synchronized boolean isOpen() {
+        return isTripped() && (trialRunning || System.currentTimeMillis() - openedAt < openTime);
+    }
+
+    /**
+     * Records a successful call, closing the breaker.
+     */
+    public synchronized void recordSuccess() {
+        if (isTripped()) {
+            LOGGER.info("Circuit breaker for " + name + " closed");
+        }
+        failures = 0;
+        trialRunning = false;
+    }
+
+    /**
+     * Records a failed call, opening the breaker when the threshold is reached or when a trial call failed.
+     */
+    public synchronized void recordFailure() {
+        failures++;
+        trialRunning = false;
+        if (isTripped()) {
+            if (failures == failureThreshold) {
+                LOGGER.warn("Circuit breaker for " + name + " opened after " + failures + " failed calls");
+            }
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Ends a call without recording its result, e.g. when the calling thread was interrupted, so that a trial call that didn't finish
+     * doesn't keep the breaker open for good.
+     */
+    public synchronized void releaseTrial() {
+        trialRunning = false;
+    }
+
+    /**
+     * @return true if the breaker is enabled and the failure threshold has been reached
+     */
+    private boolean isTripped() {
+        return failureThreshold > 0 && failures >= failureThreshold;
+    }
+}
@@ -0,0 +1,57 @@
+package com.monator.freemarker.service;
+
+/**
+ * A template source for the default template packaged with the portlet, served by a template loader when its backend is unavailable
+ * and it has no earlier version of the template.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public final class FallbackTemplateSource {
+
+    /** The name of the template, as requested by FreeMarker. */
+    private final String name;
+
+    /** The content of the default template. */
+    private final byte[] content;
+
+    /** Time the default template was last modified. */
+    private final long lastModified;
+
+    /**
+     * Creates a new fallback template source.
+     * 
+     * @param name
+     *            the name of the template
+     * @param content
+     *            the content of the default template
+     * @param lastModified
+     *            time the default template was last modified
+     */
+    FallbackTemplateSource(final String name, final byte[] content, final long lastModified) {
+        this.name = name;
+        this.content = content;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return the content of the default template
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * @return time the default template was last modified
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return "fallback:" + name;
+    }
+}
@@ -0,0 +1,57 @@
+package com.monator.freemarker.service;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.servlet.view.freemarker.FreeMarkerConfig;
+
+import freemarker.cache.TemplateLoader;
+
+/**
+ * Clears FreeMarker's template cache when one of the template loaders reports a changed template. This lets changes show up right away
+ * even when <code>template_update_delay</code> is set very long.
+ * 
+ * FreeMarker caches templates by the requested name and locale while the loaders report the localized name they served, so the whole
+ * cache is cleared rather than a single entry. Template changes are rare enough for that to be cheap.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class FreemarkerTemplateCacheInvalidator implements TemplateChangeListener {
+
+    /** Constant to use for logging. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(FreemarkerTemplateCacheInvalidator.class);
+
+    /** The FreeMarker configuration holding the template cache. */
+    private final FreeMarkerConfig freemarkerConfig;
+
+    /**
+     * Creates a new invalidator and registers it with all observable template loaders in the list.
+     * 
+     * @param freemarkerConfig
+     *            the FreeMarker configuration holding the template cache
+     * @param templateLoaders
+     *            the template loaders to listen to
+     */
+    public FreemarkerTemplateCacheInvalidator(final FreeMarkerConfig freemarkerConfig, final List<TemplateLoader> templateLoaders) {
+        this.freemarkerConfig = freemarkerConfig;
+        for (TemplateLoader templateLoader : templateLoaders) {
+            if (templateLoader instanceof ObservableTemplateLoader) {
+                ((ObservableTemplateLoader) templateLoader).addTemplateChangeListener(this);
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.monator.freemarker.service.TemplateChangeListener#templateChanged(java.lang.String)
+     */
+    public final void templateChanged(final String name) {
+        if (name != null) {
+            LOGGER.info("Template " + name + " changed, clearing the FreeMarker template cache");
+        } else {
+            LOGGER.info("Templates changed, clearing the FreeMarker template cache");
+        }
+        freemarkerConfig.getConfiguration().clearTemplateCache();
+    }
+}
@@ -2,13 +2,16 @@ package com.monator.freemarker.service;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,6 +29,8 @@ import com.liferay.portal.model.GroupConstants;
 import com.liferay.portal.service.GroupLocalServiceUtil;
 import com.liferay.portal.service.ServiceContext;
 import com.liferay.portal.service.ServiceContextThreadLocal;
+import com.liferay.portal.service.UserLocalServiceUtil;
+import com.liferay.portal.util.PortalUtil;
 import com.liferay.portlet.documentlibrary.NoSuchFileEntryException;
 import com.liferay.portlet.documentlibrary.NoSuchFolderException;
 import com.liferay.portlet.documentlibrary.model.DLFileEntry;
@@ -33,7 +38,11 @@ import com.liferay.portlet.documentlibrary.model.DLFolder;
 import com.liferay.portlet.documentlibrary.service.DLFileEntryLocalServiceUtil;
 import com.liferay.portlet.documentlibrary.service.DLFolderLocalServiceUtil;
 import com.liferay.portlet.dynamicdatamapping.storage.Fields;
+import com.monator.freemarker.metrics.OperationMetrics;
 import com.monator.freemarker.util.FreemarkerConstants;
+import com.monator.freemarker.util.NamedThreadFactory;
+import com.monator.freemarker.util.SiteTemplateNameUtil;
+import com.monator.freemarker.util.TemplateMarkerUtil;
 
 import freemarker.cache.TemplateLoader;
 
@@ -43,7 +52,7 @@ import freemarker.cache.TemplateLoader;
  * @author Andreas Magnusson Monator Technologies AB
  * 
  */
-public class LiferayFreemarkerTemplateLoader implements TemplateLoader {
+public class LiferayFreemarkerTemplateLoader extends AbstractFreemarkerTemplateLoader {
 
     /** Name of the Site under which the template will be found. */
     private String site_name;
@@ -60,6 +69,36 @@ public class LiferayFreemarkerTemplateLoader implements TemplateLoader {
     /** Default template which will be copied to the created folder path if create_folder is true. */
     private Resource default_template;
 
+    /** Interval in seconds between checks of the template markers, zero or less disables invalidation by the model listeners. */
+    private long invalidationCheckInterval;
+
+    /** Executor checking the template markers, <code>null</code> when not started. */
+    private ScheduledExecutorService invalidationExecutor;
+
+    /** Names of the served templates, without Site qualification, by fileEntryId, watched through their entry markers. */
+    private Map<Long, String> watchedEntries = new ConcurrentHashMap<Long, String>();
+
+    /** Names of missing templates by their name marker key, watched in case they are added. */
+    private Map<String, String> watchedNames = new ConcurrentHashMap<String, String>();
+
+    /** Cache keys of the resolved template folders by the folder and Site markers they depend on. */
+    private Map<String, String> watchedFolders = new ConcurrentHashMap<String, String>();
+
+    /** Keys of the indexed template folders by their listing markers. */
+    private Map<String, String> watchedListings = new ConcurrentHashMap<String, String>();
+
+    /** Index of the template names in the template folders, <code>null</code> when disabled. */
+    private TemplateNameIndex nameIndex;
+
+    /** Coalesces concurrent listings of the same template folder. */
+    private final SingleFlight<List<String>> listings = new SingleFlight<List<String>>();
+
+    /** Determines if templates are looked up in the requesting Site before the configured Site. */
+    private boolean siteTemplates;
+
+    /** Service context of the default company, used outside of requests, <code>null</code> until needed. */
+    private volatile ServiceContext defaultServiceContext;
+
     /** Constant to use for logging. */
     private static final Logger LOGGER = LoggerFactory.getLogger(LiferayFreemarkerTemplateLoader.class);
 
@@ -86,92 +125,478 @@ public class LiferayFreemarkerTemplateLoader implements TemplateLoader {
         this.default_template = defaultTemplate;
     }
 
+    /**
+     * Sets the interval between checks of the markers that the {@link com.monator.freemarker.listener.DLFileEntryTemplateListener} and
+     * {@link com.monator.freemarker.listener.DLFolderTemplateListener} remove on all nodes when a template or template folder changes.
+     * Changed templates are evicted and reported to the {@link TemplateChangeListener}s, so FreeMarker's update delay can be set very
+     * long. The check only reads Liferay's cache, never the database.
+     * 
+     * @param seconds
+     *            interval in seconds, zero or less disables invalidation by the model listeners
+     */
+    public final void setInvalidationCheckSeconds(final long seconds) {
+        this.invalidationCheckInterval = seconds;
+    }
+
+    /**
+     * Sets how long a listing of a template folder is used to answer lookups of names that aren't in the folder, e.g. the localized
+     * variants FreeMarker probes for, without a call to the Document and Media Library that fails with a
+     * {@link NoSuchFileEntryException}. With invalidation by the model listeners, the listing is dropped as soon as a template in the
+     * folder is added, renamed or removed.
+     * 
+     * @param seconds
+     *            time to live in seconds, zero or less disables the name index
+     */
+    public final void setNameIndexTtlSeconds(final long seconds) {
+        this.nameIndex = seconds > 0 ? new TemplateNameIndex(seconds * 1000) : null;
+    }
+
+    /**
+     * Determines if a template requested for a Site is first looked up in the template folder of that Site, so that Sites can override
+     * the templates in the configured Site. The requesting Site is passed in the template name by the
+     * {@link com.monator.freemarker.view.SiteFreeMarkerView}.
+     * 
+     * @param siteTemplates
+     *            if true, templates are looked up in the requesting Site first
+     */
+    public final void setSiteTemplates(final boolean siteTemplates) {
+        this.siteTemplates = siteTemplates;
+    }
+
+    /**
+     * Starts checking the template markers if enabled.
+     */
+    public final void init() {
+        if (invalidationCheckInterval > 0) {
+            invalidationExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("liferay-invalidation"));
+            invalidationExecutor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        checkMarkers();
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Could not check the template markers", e);
+                    }
+                }
+            }, invalidationCheckInterval, invalidationCheckInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops checking the template markers and the background revalidation.
+     */
+    public final void destroy() {
+        if (invalidationExecutor != null) {
+            invalidationExecutor.shutdownNow();
+        }
+        super.destroy();
+    }
+
     /**
      * Uses Liferay's API to fetch the template from the Document and Media Library and adds the folderId of the template folder and
-     * groupId (Site) to Liferay's cache for faster access. Site and folder path is created if missing, depending on the value of
-     * <code>create_folder</code> and <code>create_site</code>.
+     * groupId (Site) to Liferay's cache for faster access. The cache entries are keyed by company, Site and folder path, so the folder
+     * path is only walked again when the cached folder has been removed. Site and folder path is created if missing, depending on the
+     * value of <code>create_folder</code> and <code>create_site</code>.
+     * 
+     * With Site templates enabled, a template name qualified with the requesting Site, see {@link SiteTemplateNameUtil}, is first
+     * looked up in the template folder of that Site and then in the configured Site. Otherwise the qualification is ignored.
+     * 
+     * With the name index enabled, a name that isn't in the listing of the template folder is reported as missing without looking it
+     * up.
      * 
      * {@inheritDoc}
      */
-    public final Object findTemplateSource(final String name) throws IOException {
+    protected final Object lookupTemplateSource(final String name) throws IOException {
+        ServiceContext serviceContext = getServiceContext();
+        String templateName = SiteTemplateNameUtil.getTemplateName(name);
+        long siteGroupId = SiteTemplateNameUtil.getGroupId(name);
+        if (siteTemplates && siteGroupId > 0) {
+            Object fmTemplate = lookupTemplateSource(name, templateName, siteGroupId, serviceContext);
+            if (fmTemplate != null) {
+                return fmTemplate;
+            }
+        }
+        return lookupTemplateSource(name, templateName, 0, serviceContext);
+    }
+
+    /**
+     * Looks up a template in the template folder of a Site.
+     * 
+     * @param name
+     *            the name of the template, as requested by FreeMarker
+     * @param templateName
+     *            the name of the template without Site qualification
+     * @param siteGroupId
+     *            the groupId of the Site to look in, or 0 for the configured Site
+     * @param serviceContext
+     *            the service context
+     * @return the template source or <code>null</code> if the template doesn't exist in the Site
+     * @throws IOException
+     *             if the listing of the template folder failed
+     */
+    private Object lookupTemplateSource(final String name, final String templateName, final long siteGroupId,
+            final ServiceContext serviceContext) throws IOException {
         Object fmTemplate = null;
+        String siteKey = siteGroupId > 0 ? String.valueOf(siteGroupId) : site_name;
+        String folderIdKey = getFolderIdKey(serviceContext.getCompanyId(), siteKey);
+        long freemarkerTemplateFolderId = 0;
+        boolean folderIdCached = false;
         try {
-            ServiceContext serviceContext = ServiceContextThreadLocal.getServiceContext();
-            long freemarkerTemplateFolderId;
-            long groupId = 0;
-            Object freemarkerTemplateFolderIdObject = MultiVMKeyPoolUtil.get("freemarkerCache", "freemarkerTemplateFolderId");
-            Object groupIdObject = MultiVMKeyPoolUtil.get("freemarkerCache", "freemarkerTemplateGroupId");
+            long groupId = siteGroupId;
+            Object freemarkerTemplateFolderIdObject = MultiVMKeyPoolUtil.get(FreemarkerConstants.LIFERAY_CACHE_NAME, folderIdKey);
             long rootFolderId = CompanyConstants.SYSTEM;
 
-            if (groupIdObject == null) {
-                groupId = getTemplatesGroupId(site_name, serviceContext);
-                if (groupId == FreemarkerConstants.MISSING_SITE) {
-                    // If the Site doesn't exist return an empty template.
-                    return fmTemplate;
+            if (siteGroupId <= 0) {
+                String groupIdKey = getGroupIdKey(serviceContext.getCompanyId());
+                Object groupIdObject = MultiVMKeyPoolUtil.get(FreemarkerConstants.LIFERAY_CACHE_NAME, groupIdKey);
+                if (groupIdObject == null) {
+                    groupId = getTemplatesGroupId(site_name, create_site && isCreationAllowed(), serviceContext);
+                    if (groupId == FreemarkerConstants.MISSING_SITE) {
+                        // If the Site doesn't exist return an empty template.
+                        return fmTemplate;
+                    }
+                    MultiVMKeyPoolUtil.put(FreemarkerConstants.LIFERAY_CACHE_NAME, groupIdKey, groupId);
+                } else {
+                    groupId = (Long) groupIdObject;
                 }
-                MultiVMKeyPoolUtil.put("freemarkerCache", "freemarkerTemplateGroupId", groupId);
-            } else {
-                groupId = (Long) groupIdObject;
             }
 
             if (freemarkerTemplateFolderIdObject == null) {
                 String[] templateFolders = template_folder_path.split("/");
                 List<String> templateFoldersArray = new ArrayList<String>(Arrays.asList(templateFolders));
-                freemarkerTemplateFolderId = getTemplateFolderIdFromPath(groupId, rootFolderId, templateFoldersArray, serviceContext);
+                freemarkerTemplateFolderId = getTemplateFolderIdFromPath(groupId, rootFolderId, templateFoldersArray, siteGroupId <= 0
+                        && create_folder && isCreationAllowed(), serviceContext);
                 if (freemarkerTemplateFolderId == FreemarkerConstants.MISSING_FOLDER) {
+                    if (siteGroupId > 0 && invalidationExecutor != null) {
+                        // Remember that the Site has no template folder until a folder is added to the Site.
+                        MultiVMKeyPoolUtil.put(FreemarkerConstants.LIFERAY_CACHE_NAME, folderIdKey, freemarkerTemplateFolderId);
+                        watchFolder(TemplateMarkerUtil.getSiteKey(siteGroupId), folderIdKey);
+                    }
                     // If the folder doesn't exist return an empty template.
                     return fmTemplate;
                 }
-                MultiVMKeyPoolUtil.put("freemarkerCache", "freemarkerTemplateFolderId", freemarkerTemplateFolderId);
+                MultiVMKeyPoolUtil.put(FreemarkerConstants.LIFERAY_CACHE_NAME, folderIdKey, freemarkerTemplateFolderId);
             } else {
                 freemarkerTemplateFolderId = (Long) freemarkerTemplateFolderIdObject;
+                if (freemarkerTemplateFolderId == FreemarkerConstants.MISSING_FOLDER) {
+                    if (invalidationExecutor != null && !watchedFolders.containsKey(TemplateMarkerUtil.getSiteKey(siteGroupId))) {
+                        watchFolder(TemplateMarkerUtil.getSiteKey(siteGroupId), folderIdKey);
+                    }
+                    return fmTemplate;
+                }
+                folderIdCached = freemarkerTemplateFolderId != rootFolderId;
+            }
+            if (invalidationExecutor != null && !watchedFolders.containsKey(TemplateMarkerUtil.getFolderKey(freemarkerTemplateFolderId))) {
+                watchFolderPath(folderIdKey, freemarkerTemplateFolderId);
             }
 
-            DLFileEntry template = DLFileEntryLocalServiceUtil.getFileEntry(groupId, freemarkerTemplateFolderId, name);
+            if (!isListed(groupId, folderIdKey, freemarkerTemplateFolderId, templateName)) {
+                LOGGER.debug("No template with name " + templateName + " in the listing of Site " + siteKey + ", trying next");
+                watchMissingName(freemarkerTemplateFolderId, templateName);
+                return fmTemplate;
+            }
+
+            DLFileEntry template = getFileEntry(groupId, freemarkerTemplateFolderId, templateName);
+            if (invalidationExecutor != null) {
+                watchedEntries.put(template.getFileEntryId(), templateName);
+                TemplateMarkerUtil.mark(TemplateMarkerUtil.getEntryKey(template.getFileEntryId()));
+            }
             fmTemplate = template;
         } catch (NoSuchFileEntryException e) {
-            LOGGER.debug("No template with name " + name + ", trying next");
+            LOGGER.debug("No template with name " + templateName + " in Site " + siteKey + ", trying next");
+            watchMissingName(freemarkerTemplateFolderId, templateName);
+            if (folderIdCached) {
+                evictRemovedFolder(folderIdKey, freemarkerTemplateFolderId);
+            }
         } catch (PortalException e) {
             e.printStackTrace();
         } catch (SystemException e) {
             e.printStackTrace();
         }
-        MultiVMKeyPoolUtil.remove("freemarkerCache", "freemarkerTemplateFolderId");
         return fmTemplate;
     }
 
+    /**
+     * Checks the name index for a template name, listing the template folder first if the index has no fresh listing of it.
+     * 
+     * @param groupId
+     *            the Site of the template folder
+     * @param folderIdKey
+     *            the cache key of the folderId
+     * @param folderId
+     *            the folderId of the template folder
+     * @param templateName
+     *            the name of the template without Site qualification
+     * @return true if the template may exist and has to be looked up, false if it is known to be missing
+     * @throws IOException
+     *             if the listing failed
+     */
+    private boolean isListed(final long groupId, final String folderIdKey, final long folderId, final String templateName)
+            throws IOException {
+        if (nameIndex == null) {
+            return true;
+        }
+        String folderKey = String.valueOf(folderId);
+        Boolean listed = nameIndex.contains(folderKey, templateName);
+        if (listed == null) {
+            listed = Boolean.valueOf(listTemplateFolder(groupId, folderIdKey, folderId).contains(templateName));
+        }
+        return listed.booleanValue();
+    }
+
+    /**
+     * Lists the template names in a template folder with one call and stores them in the name index, if enabled. The listing marker of
+     * the folder is then added before listing, so that a template added meanwhile drops the listing again. Concurrent listings of the
+     * same folder share one call. An empty folder is checked for removal, since it may be a cached folder that no longer exists.
+     * 
+     * @param groupId
+     *            the Site of the template folder
+     * @param folderIdKey
+     *            the cache key of the folderId
+     * @param folderId
+     *            the folderId of the template folder
+     * @return the template names in the folder
+     * @throws IOException
+     *             if the folder could not be listed
+     */
+    private List<String> listTemplateFolder(final long groupId, final String folderIdKey, final long folderId) throws IOException {
+        final String folderKey = String.valueOf(folderId);
+        return listings.execute(folderKey, new Callable<List<String>>() {
+            public List<String> call() throws IOException {
+                if (invalidationExecutor != null && nameIndex != null) {
+                    String listingKey = TemplateMarkerUtil.getListingKey(folderId);
+                    watchedListings.put(listingKey, folderKey);
+                    TemplateMarkerUtil.mark(listingKey);
+                }
+                OperationMetrics listMetrics = getOperationMetrics("getFileEntries");
+                long start = listMetrics.start();
+                try {
+                    List<String> names = new ArrayList<String>();
+                    for (DLFileEntry fileEntry : DLFileEntryLocalServiceUtil.getFileEntries(groupId, folderId)) {
+                        names.add(fileEntry.getTitle());
+                    }
+                    listMetrics.success(start);
+                    if (names.isEmpty()) {
+                        evictRemovedFolder(folderIdKey, folderId);
+                    }
+                    if (nameIndex != null) {
+                        nameIndex.put(folderKey, names);
+                    }
+                    return names;
+                } catch (SystemException e) {
+                    listMetrics.failure(start);
+                    throw toIOException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets a file entry from the Document and Media Library and records the call in the metrics of the loader.
+     * 
+     * @param groupId
+     *            the Site of the template folder
+     * @param folderId
+     *            the folderId of the template folder
+     * @param templateName
+     *            the name of the template without Site qualification
+     * @return the file entry
+     * @throws PortalException
+     *             if the file entry doesn't exist
+     * @throws SystemException
+     *             if the Document and Media Library could not be read
+     */
+    private DLFileEntry getFileEntry(final long groupId, final long folderId, final String templateName) throws PortalException,
+            SystemException {
+        OperationMetrics entryMetrics = getOperationMetrics("getFileEntry");
+        long start = entryMetrics.start();
+        try {
+            DLFileEntry fileEntry = DLFileEntryLocalServiceUtil.getFileEntry(groupId, folderId, templateName);
+            entryMetrics.hitOrMiss(start, true);
+            return fileEntry;
+        } catch (NoSuchFileEntryException e) {
+            entryMetrics.hitOrMiss(start, false);
+            throw e;
+        } catch (PortalException e) {
+            entryMetrics.failure(start);
+            throw e;
+        } catch (SystemException e) {
+            entryMetrics.failure(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Lists the template folder of the configured Site, resolving the Site and folder if they aren't cached. A missing Site or folder is
+     * not created, so that listing the templates, e.g. to precompile them, never adds content.
+     * 
+     * {@inheritDoc}
+     */
+    protected final List<String> listTemplateNames() throws IOException {
+        List<String> names = new ArrayList<String>();
+        ServiceContext serviceContext = getServiceContext();
+        Object groupIdObject = MultiVMKeyPoolUtil.get(FreemarkerConstants.LIFERAY_CACHE_NAME, getGroupIdKey(serviceContext.getCompanyId()));
+        long groupId = groupIdObject != null ? (Long) groupIdObject : getTemplatesGroupId(site_name, false, serviceContext);
+        if (groupId == FreemarkerConstants.MISSING_SITE) {
+            return names;
+        }
+        String folderIdKey = getFolderIdKey(serviceContext.getCompanyId(), site_name);
+        Object folderIdObject = MultiVMKeyPoolUtil.get(FreemarkerConstants.LIFERAY_CACHE_NAME, folderIdKey);
+        long folderId = folderIdObject != null ? (Long) folderIdObject : getTemplateFolderIdFromPath(groupId, CompanyConstants.SYSTEM,
+                new ArrayList<String>(Arrays.asList(template_folder_path.split("/"))), false, serviceContext);
+        if (folderId == FreemarkerConstants.MISSING_FOLDER) {
+            return names;
+        }
+        for (String title : listTemplateFolder(groupId, folderIdKey, folderId)) {
+            if (title.endsWith(FreemarkerConstants.TEMPLATE_SUFFIX)) {
+                names.add(title);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns the service context of the calling thread, or outside of requests, e.g. when templates are precompiled on startup, a
+     * service context for the default company and its default user.
+     * 
+     * @return the service context
+     * @throws IOException
+     *             if the default user could not be found
+     */
+    private ServiceContext getServiceContext() throws IOException {
+        ServiceContext serviceContext = ServiceContextThreadLocal.getServiceContext();
+        if (serviceContext != null) {
+            return serviceContext;
+        }
+        if (defaultServiceContext == null) {
+            try {
+                ServiceContext defaultContext = new ServiceContext();
+                defaultContext.setCompanyId(PortalUtil.getDefaultCompanyId());
+                defaultContext.setUserId(UserLocalServiceUtil.getDefaultUserId(defaultContext.getCompanyId()));
+                defaultServiceContext = defaultContext;
+            } catch (PortalException e) {
+                throw toIOException(e);
+            } catch (SystemException e) {
+                throw toIOException(e);
+            }
+        }
+        return defaultServiceContext;
+    }
+
+    /**
+     * Marks the name of a missing template in its folder, so that the template is reported as changed when it is added.
+     * 
+     * @param folderId
+     *            the folderId of the template folder
+     * @param templateName
+     *            the name of the template without Site qualification
+     */
+    private void watchMissingName(final long folderId, final String templateName) {
+        if (invalidationExecutor != null) {
+            String nameKey = TemplateMarkerUtil.getNameKey(folderId, templateName);
+            watchedNames.put(nameKey, templateName);
+            TemplateMarkerUtil.mark(nameKey);
+        }
+    }
+
+    /**
+     * Lookups depend on the company of the calling thread's {@link ServiceContext}.
+     * 
+     * {@inheritDoc}
+     */
+    protected final String getContextKey() {
+        ServiceContext serviceContext = ServiceContextThreadLocal.getServiceContext();
+        return serviceContext != null ? serviceContext.getCompanyId() + "#" : "";
+    }
+
+    /**
+     * Runs the task with the calling thread's {@link ServiceContext}, which the lookups need for the company and user.
+     * 
+     * {@inheritDoc}
+     */
+    protected final <T> Callable<T> inheritContext(final Callable<T> task) {
+        final ServiceContext serviceContext = ServiceContextThreadLocal.getServiceContext();
+        return new Callable<T>() {
+            public T call() throws Exception {
+                ServiceContextThreadLocal.pushServiceContext(serviceContext);
+                try {
+                    return task.call();
+                } finally {
+                    ServiceContextThreadLocal.popServiceContext();
+                }
+            }
+        };
+    }
+
     /* (non-Javadoc)
-     * @see freemarker.cache.TemplateLoader#getLastModified(java.lang.Object)
+     * @see com.monator.freemarker.service.AbstractFreemarkerTemplateLoader#getTemplateLastModified(java.lang.Object)
      */
-    public final long getLastModified(final Object templateSource) {
+    protected final long getTemplateLastModified(final Object templateSource) {
         return ((DLFileEntry) templateSource).getModifiedDate().getTime();
     }
 
     /* (non-Javadoc)
-     * @see freemarker.cache.TemplateLoader#getReader(java.lang.Object, java.lang.String)
+     * @see com.monator.freemarker.service.AbstractFreemarkerTemplateLoader#getTemplateId(java.lang.Object)
+     */
+    protected final String getTemplateId(final Object templateSource) {
+        return String.valueOf(((DLFileEntry) templateSource).getFileEntryId());
+    }
+
+    /**
+     * Returns the version of the file entry, which the Document and Media Library increases on every update of the content, or the
+     * modified date if the file entry has no version.
+     * 
+     * {@inheritDoc}
+     */
+    protected final String getTemplateVersion(final Object templateSource) {
+        String version = ((DLFileEntry) templateSource).getVersion();
+        if (Validator.isNull(version)) {
+            return String.valueOf(getTemplateLastModified(templateSource));
+        }
+        return version;
+    }
+
+    /**
+     * Reads the content of the version returned by {@link #getTemplateVersion(Object)}, so that the cached content always belongs to
+     * the version it is cached for, even if the file entry is updated while it is read.
+     * 
+     * {@inheritDoc}
      */
-    public final Reader getReader(final Object templateSource, final String encoding) throws IOException {
-        Reader templateReader = null;
+    protected final InputStream openContent(final Object templateSource) throws IOException {
+        DLFileEntry fileEntry = (DLFileEntry) templateSource;
         try {
-            templateReader = new InputStreamReader(((DLFileEntry) templateSource).getContentStream(), encoding);
+            if (Validator.isNull(fileEntry.getVersion())) {
+                return fileEntry.getContentStream();
+            }
+            return fileEntry.getContentStream(fileEntry.getVersion());
         } catch (PortalException e) {
-            e.printStackTrace();
+            throw toIOException(e);
         } catch (SystemException e) {
-            e.printStackTrace();
+            throw toIOException(e);
         }
-        return templateReader;
+    }
+
+    /**
+     * Uses the company of the calling thread, or outside of requests the default company, the Site name and the template folder path,
+     * since Sites with the same name in different companies hold different templates.
+     * 
+     * {@inheritDoc}
+     */
+    protected final String getSnapshotNamespace() {
+        ServiceContext serviceContext = ServiceContextThreadLocal.getServiceContext();
+        long companyId = serviceContext != null ? serviceContext.getCompanyId() : PortalUtil.getDefaultCompanyId();
+        return "liferay:" + companyId + ":" + site_name + ":" + template_folder_path;
     }
 
     /* (non-Javadoc)
-     * @see freemarker.cache.TemplateLoader#closeTemplateSource(java.lang.Object)
+     * @see com.monator.freemarker.service.AbstractFreemarkerTemplateLoader#getBackendName()
      */
-    public void closeTemplateSource(final Object templateSource) throws IOException {
-        // Do nothing
+    protected final String getBackendName() {
+        return "liferay";
     }
 
     /**
      * Returns the folderId for the last folder in <code>templateFoldersArray</code> or {@link FreemarkerConstants#MISSING_FOLDER} depending
-     * on the value of {@link LiferayFreemarkerTemplateLoader#create_folder}.
+     * on the value of <code>createFolder</code>.
      * 
      * @param groupId
      *            the Site where the template is located
@@ -179,18 +604,20 @@ public class LiferayFreemarkerTemplateLoader implements TemplateLoader {
      *            folderId for the parent folder
      * @param templateFoldersArray
      *            array of folder names for the template's folder path
+     * @param createFolder
+     *            if true, missing folders are created
      * @param serviceContext
      *            the service context
      * @return the folderId for the last folder in <code>templateFoldersArray</code> or {@link FreemarkerConstants#MISSING_FOLDER}
      */
     private long getTemplateFolderIdFromPath(final long groupId, long folderId, final List<String> templateFoldersArray,
-            final ServiceContext serviceContext) {
+            final boolean createFolder, final ServiceContext serviceContext) {
         if (templateFoldersArray.size() > 0) {
             DLFolder folder = null;
             try {
                 folder = DLFolderLocalServiceUtil.getFolder(groupId, folderId, templateFoldersArray.get(0));
             } catch (NoSuchFolderException e) {
-                if (create_folder) {
+                if (createFolder) {
                     LOGGER.info("No folder with that name exists, creating one automatically");
                     long folderIdFromCounter = 0;
                     try {
@@ -226,26 +653,27 @@ public class LiferayFreemarkerTemplateLoader implements TemplateLoader {
 
             folderId = folder.getFolderId();
             templateFoldersArray.remove(0);
-            return getTemplateFolderIdFromPath(groupId, folderId, templateFoldersArray, serviceContext);
+            return getTemplateFolderIdFromPath(groupId, folderId, templateFoldersArray, createFolder, serviceContext);
         }
         return folderId;
     }
 
     /**
-     * Returns the template's groupId or {@link FreemarkerConstants#MISSING_SITE} depending on the value of
-     * {@link LiferayFreemarkerTemplateLoader#create_site}.
+     * Returns the template's groupId or {@link FreemarkerConstants#MISSING_SITE} depending on the value of <code>createSite</code>.
      * 
      * @param siteName
      *            name of the Site where the template should exist
+     * @param createSite
+     *            if true, a missing Site is created
      * @param serviceContext
      *            the service context
      * @return the groupId of the template or {@link FreemarkerConstants#MISSING_SITE}
      */
-    private long getTemplatesGroupId(final String siteName, final ServiceContext serviceContext) {
+    private long getTemplatesGroupId(final String siteName, final boolean createSite, final ServiceContext serviceContext) {
         long groupId = 0;
         try {
             Group groupToLoadTemplateFrom = GroupLocalServiceUtil.fetchGroup(serviceContext.getCompanyId(), siteName);
-            if (Validator.isNull(groupToLoadTemplateFrom) && create_site) {
+            if (Validator.isNull(groupToLoadTemplateFrom) && createSite) {
                 LOGGER.info("No Group/Site with that name exists, creating one automatically");
                 long groupIdFromCounter = CounterLocalServiceUtil.increment();
                 Group newGroup = GroupLocalServiceUtil.createGroup(groupIdFromCounter);
@@ -266,4 +694,137 @@ public class LiferayFreemarkerTemplateLoader implements TemplateLoader {
         }
         return groupId;
     }
+
+    /**
+     * Checks the markers of the watched folders, folder listings, templates and missing template names. When a folder on the template
+     * folder path has changed, the folder is resolved again and all templates are reported as changed. A changed listing is dropped
+     * from the name index before the changed names are reported, so that FreeMarker's next lookup lists the folder again. A changed
+     * template is evicted and reported by its name.
+     */
+    private void checkMarkers() {
+        for (Map.Entry<String, String> folder : watchedFolders.entrySet()) {
+            if (!TemplateMarkerUtil.isMarked(folder.getKey())) {
+                LOGGER.info("Template folder " + template_folder_path + " changed, resolving it again");
+                MultiVMKeyPoolUtil.remove(FreemarkerConstants.LIFERAY_CACHE_NAME, folder.getValue());
+                watchedFolders.clear();
+                watchedNames.clear();
+                watchedListings.clear();
+                if (nameIndex != null) {
+                    nameIndex.clear();
+                }
+                fireTemplateChanged(null);
+                break;
+            }
+        }
+        for (Map.Entry<String, String> listing : watchedListings.entrySet()) {
+            if (!TemplateMarkerUtil.isMarked(listing.getKey())) {
+                watchedListings.remove(listing.getKey());
+                if (nameIndex != null) {
+                    nameIndex.remove(listing.getValue());
+                }
+            }
+        }
+        for (Map.Entry<Long, String> entry : watchedEntries.entrySet()) {
+            if (!TemplateMarkerUtil.isMarked(TemplateMarkerUtil.getEntryKey(entry.getKey()))) {
+                watchedEntries.remove(entry.getKey());
+                forgetTemplate(String.valueOf(entry.getKey()));
+                fireTemplateChanged(entry.getValue());
+            }
+        }
+        for (Map.Entry<String, String> missing : watchedNames.entrySet()) {
+            if (!TemplateMarkerUtil.isMarked(missing.getKey())) {
+                watchedNames.remove(missing.getKey());
+                fireTemplateChanged(missing.getValue());
+            }
+        }
+    }
+
+    /**
+     * Marks the template folder and all its parent folders, so that the resolved folder is dropped when any folder on the path is
+     * renamed, moved or removed.
+     * 
+     * @param folderIdKey
+     *            the cache key of the folderId
+     * @param folderId
+     *            the folderId of the template folder
+     */
+    private void watchFolderPath(final String folderIdKey, final long folderId) {
+        long pathFolderId = folderId;
+        try {
+            while (pathFolderId != CompanyConstants.SYSTEM) {
+                watchFolder(TemplateMarkerUtil.getFolderKey(pathFolderId), folderIdKey);
+                pathFolderId = DLFolderLocalServiceUtil.getFolder(pathFolderId).getParentFolderId();
+            }
+        } catch (PortalException e) {
+            e.printStackTrace();
+        } catch (SystemException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Marks a folder or Site that a resolved template folder depends on.
+     * 
+     * @param markerKey
+     *            the marker key of the folder or Site
+     * @param folderIdKey
+     *            the cache key of the resolved template folder
+     */
+    private void watchFolder(final String markerKey, final String folderIdKey) {
+        watchedFolders.put(markerKey, folderIdKey);
+        TemplateMarkerUtil.mark(markerKey);
+    }
+
+    /**
+     * Removes the cached folderId of the template folder if the folder no longer exists, so that the folder path is resolved again on
+     * the next lookup.
+     * 
+     * @param folderIdKey
+     *            the cache key of the folderId
+     * @param folderId
+     *            the cached folderId
+     */
+    private void evictRemovedFolder(final String folderIdKey, final long folderId) {
+        try {
+            if (DLFolderLocalServiceUtil.fetchDLFolder(folderId) == null) {
+                LOGGER.info("Template folder " + template_folder_path + " has been removed, resolving it again");
+                MultiVMKeyPoolUtil.remove(FreemarkerConstants.LIFERAY_CACHE_NAME, folderIdKey);
+            }
+        } catch (SystemException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param companyId
+     *            the company the template is loaded for
+     * @return the cache key of the groupId of the template Site
+     */
+    private String getGroupIdKey(final long companyId) {
+        return "freemarkerTemplateGroupId#" + companyId + "#" + site_name;
+    }
+
+    /**
+     * @param companyId
+     *            the company the template is loaded for
+     * @param siteKey
+     *            the configured Site name or the groupId of the requesting Site
+     * @return the cache key of the folderId of the template folder
+     */
+    private String getFolderIdKey(final long companyId, final String siteKey) {
+        return "freemarkerTemplateFolderId#" + companyId + "#" + siteKey + "#" + template_folder_path;
+    }
+
+    /**
+     * Wraps an exception from the Document and Media Library in an {@link IOException}, which is what FreeMarker expects.
+     * 
+     * @param e
+     *            the exception to wrap
+     * @return the IO exception
+     */
+    private IOException toIOException(final Exception e) {
+        IOException ioe = new IOException("Document and Media Library call failed: " + e.getMessage());
+        ioe.initCause(e);
+        return ioe;
+    }
 }
@@ -0,0 +1,82 @@
+package com.monator.freemarker.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers template names that could not be found for a limited time, so that repeated lookups of missing templates, e.g. the
+ * localized variants FreeMarker probes for, can be answered without asking the repository again.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class NegativeLookupCache {
+
+    /** Maximum number of names to remember before the cache is cleared. */
+    private static final int MAX_ENTRIES = 10000;
+
+    /** Time in milliseconds a missing name is remembered. */
+    private final long ttl;
+
+    /** The missing names mapped to the time their entry expires. */
+    private final Map<String, Long> expiries = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Creates a new negative lookup cache.
+     * 
+     * @param ttl
+     *            time in milliseconds a missing name is remembered
+     */
+    public NegativeLookupCache(final long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Checks if a name is known to be missing.
+     * 
+     * @param name
+     *            the template name
+     * @return true if the name was found to be missing within the time to live
+     */
+    public final boolean isMissing(final String name) {
+        Long expires = expiries.get(name);
+        if (expires == null) {
+            return false;
+        }
+        if (expires.longValue() < System.currentTimeMillis()) {
+            expiries.remove(name);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remembers a name as missing.
+     * 
+     * @param name
+     *            the template name
+     */
+    public final void markMissing(final String name) {
+        if (expiries.size() >= MAX_ENTRIES) {
+            expiries.clear();
+        }
+        expiries.put(name, Long.valueOf(System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Forgets a name, e.g. when a template with that name has been created.
+     * 
+     * @param name
+     *            the template name
+     */
+    public final void remove(final String name) {
+        expiries.remove(name);
+    }
+
+    /**
+     * Forgets all names.
+     */
+    public final void clear() {
+        expiries.clear();
+    }
+}
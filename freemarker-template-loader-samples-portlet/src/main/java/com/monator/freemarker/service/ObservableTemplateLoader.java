@@ -0,0 +1,21 @@
+package com.monator.freemarker.service;
+
+import freemarker.cache.TemplateLoader;
+
+/**
+ * A {@link TemplateLoader} that notifies listeners when its templates change, so that caches in front of it can be invalidated without
+ * polling.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public interface ObservableTemplateLoader extends TemplateLoader {
+
+    /**
+     * Registers a listener that is notified when a template has been changed or removed.
+     * 
+     * @param listener
+     *            the listener to notify
+     */
+    void addTemplateChangeListener(TemplateChangeListener listener);
+}
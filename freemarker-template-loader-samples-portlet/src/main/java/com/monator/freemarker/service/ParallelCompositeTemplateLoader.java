@@ -0,0 +1,391 @@
+package com.monator.freemarker.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.monator.freemarker.metrics.RenderTrace;
+import com.monator.freemarker.util.NamedThreadFactory;
+import com.monator.freemarker.util.SiteTemplateNameUtil;
+
+import freemarker.cache.MultiTemplateLoader;
+import freemarker.cache.TemplateLoader;
+
+/**
+ * A {@link TemplateLoader} that asks all its loaders for a template at the same time and returns the hit of the loader with the
+ * highest priority, the first in the list. Unlike FreeMarker's {@link MultiTemplateLoader}, a template found by the last loader costs
+ * the time of the slowest lookup rather than the sum of all of them.
+ * 
+ * The first loader is queried in the calling thread, the others on a shared pool, or in the calling thread as well when all pool
+ * threads are busy. Once a loader with higher priority has found the template, lookups of lower priority loaders that haven't started
+ * are cancelled. Running lookups are left to finish, since their result may be shared with other callers of the same loader.
+ * 
+ * The loader that served a name is remembered per lookup context, e.g. the company, and asked alone the next time in that context,
+ * until one of the loaders reports that the template has changed.
+ * 
+ * When the calling thread has a {@link RenderTrace}, the time spent in each loader call and the loader that served each name are
+ * recorded in it.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class ParallelCompositeTemplateLoader implements TemplateLoader, TemplateChangeListener {
+
+    /** Constant to use for logging. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelCompositeTemplateLoader.class);
+
+    /** The loaders in priority order. */
+    private final TemplateLoader[] loaders;
+
+    /** Names of the loaders in traces, by index. */
+    private final String[] loaderNames;
+
+    /** The context keys of the loaders the templates have been requested in. */
+    private final Set<String> contextKeys = new CopyOnWriteArraySet<String>();
+
+    /** Index of the loader that served each name, by context key and name. */
+    private final ConcurrentMap<String, Integer> servedBy = new ConcurrentHashMap<String, Integer>();
+
+    /** Executor running the lookups of all loaders but the first, <code>null</code> until needed. */
+    private ThreadPoolExecutor lookupExecutor;
+
+    /** Maximum number of threads running lookups. */
+    private int lookupThreads = 8;
+
+    /**
+     * Creates a new composite loader and registers it with all observable loaders in the list.
+     * 
+     * @param templateLoaders
+     *            the loaders in priority order
+     */
+    public ParallelCompositeTemplateLoader(final List<TemplateLoader> templateLoaders) {
+        this.loaders = templateLoaders.toArray(new TemplateLoader[templateLoaders.size()]);
+        this.loaderNames = new String[loaders.length];
+        for (int i = 0; i < loaders.length; i++) {
+            if (loaders[i] instanceof ObservableTemplateLoader) {
+                ((ObservableTemplateLoader) loaders[i]).addTemplateChangeListener(this);
+            }
+            if (loaders[i] instanceof AbstractFreemarkerTemplateLoader) {
+                loaderNames[i] = ((AbstractFreemarkerTemplateLoader) loaders[i]).getBackendName();
+            } else {
+                loaderNames[i] = loaders[i].getClass().getSimpleName();
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum number of threads running lookups of the lower priority loaders.
+     * 
+     * @param lookupThreads
+     *            the number of threads
+     */
+    public final void setLookupThreads(final int lookupThreads) {
+        this.lookupThreads = Math.max(1, lookupThreads);
+    }
+
+    /**
+     * Stops the lookup threads.
+     */
+    public final synchronized void destroy() {
+        if (lookupExecutor != null) {
+            lookupExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Asks the loader that served the name before, or all loaders in parallel.
+     * 
+     * {@inheritDoc}
+     */
+    public final Object findTemplateSource(final String name) throws IOException {
+        String key = getKey(name);
+        Integer served = servedBy.get(key);
+        if (served != null) {
+            Object templateSource = find(served.intValue(), name);
+            if (templateSource != null) {
+                return serve(served.intValue(), name, templateSource);
+            }
+            servedBy.remove(key, served);
+        }
+
+        List<Future<Object>> lookups = new ArrayList<Future<Object>>(loaders.length);
+        lookups.add(null);
+        for (int i = 1; i < loaders.length; i++) {
+            lookups.add(getLookupExecutor().submit(createLookup(i, name)));
+        }
+        try {
+            for (int i = 0; i < loaders.length; i++) {
+                Object templateSource = i == 0 ? find(0, name) : getResult(lookups.get(i), name);
+                if (templateSource != null) {
+                    servedBy.put(key, Integer.valueOf(i));
+                    return serve(i, name, templateSource);
+                }
+            }
+            return null;
+        } finally {
+            for (Future<Object> lookup : lookups) {
+                if (lookup != null) {
+                    lookup.cancel(false);
+                }
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see freemarker.cache.TemplateLoader#getLastModified(java.lang.Object)
+     */
+    public final long getLastModified(final Object templateSource) {
+        CompositeSource source = (CompositeSource) templateSource;
+        RenderTrace trace = RenderTrace.current();
+        if (trace == null) {
+            return loaders[source.loader].getLastModified(source.templateSource);
+        }
+        long start = System.nanoTime();
+        try {
+            return loaders[source.loader].getLastModified(source.templateSource);
+        } finally {
+            trace.record(loaderNames[source.loader] + ".getLastModified", System.nanoTime() - start);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see freemarker.cache.TemplateLoader#getReader(java.lang.Object, java.lang.String)
+     */
+    public final Reader getReader(final Object templateSource, final String encoding) throws IOException {
+        CompositeSource source = (CompositeSource) templateSource;
+        RenderTrace trace = RenderTrace.current();
+        if (trace == null) {
+            return loaders[source.loader].getReader(source.templateSource, encoding);
+        }
+        long start = System.nanoTime();
+        try {
+            return loaders[source.loader].getReader(source.templateSource, encoding);
+        } finally {
+            trace.record(loaderNames[source.loader] + ".getReader", System.nanoTime() - start);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see freemarker.cache.TemplateLoader#closeTemplateSource(java.lang.Object)
+     */
+    public final void closeTemplateSource(final Object templateSource) throws IOException {
+        CompositeSource source = (CompositeSource) templateSource;
+        loaders[source.loader].closeTemplateSource(source.templateSource);
+    }
+
+    /**
+     * Forgets which loader served the template in any context, so that all loaders are asked again.
+     * 
+     * {@inheritDoc}
+     */
+    public final void templateChanged(final String name) {
+        if (name == null) {
+            servedBy.clear();
+            return;
+        }
+        for (String key : servedBy.keySet()) {
+            for (String contextKey : contextKeys) {
+                if (key.startsWith(contextKey)
+                        && SiteTemplateNameUtil.getTemplateName(key.substring(contextKey.length())).equals(name)) {
+                    servedBy.remove(key);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the key the loader that served a template is remembered by, the context keys of the loaders in the calling thread
+     * followed by the name, and records the context.
+     * 
+     * @param name
+     *            the name of the template
+     * @return the key
+     */
+    private String getKey(final String name) {
+        StringBuilder contextKey = new StringBuilder();
+        for (TemplateLoader loader : loaders) {
+            if (loader instanceof AbstractFreemarkerTemplateLoader) {
+                contextKey.append(((AbstractFreemarkerTemplateLoader) loader).getContextKey());
+            }
+        }
+        contextKeys.add(contextKey.toString());
+        return contextKey.append(name).toString();
+    }
+
+    /**
+     * Asks a loader for a template, recording the time in the trace of the calling thread.
+     * 
+     * @param loader
+     *            index of the loader to ask
+     * @param name
+     *            the name of the template
+     * @return the template source of the loader or <code>null</code> if the loader doesn't have the template
+     * @throws IOException
+     *             if the lookup failed
+     */
+    private Object find(final int loader, final String name) throws IOException {
+        RenderTrace trace = RenderTrace.current();
+        if (trace == null) {
+            return loaders[loader].findTemplateSource(name);
+        }
+        long start = System.nanoTime();
+        try {
+            return loaders[loader].findTemplateSource(name);
+        } finally {
+            trace.record(loaderNames[loader] + ".findTemplateSource", System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Wraps the template source of a loader and records the loader in the trace of the calling thread.
+     * 
+     * @param loader
+     *            index of the loader that found the template
+     * @param name
+     *            the name of the template
+     * @param templateSource
+     *            the template source of the loader
+     * @return the composite template source
+     */
+    private CompositeSource serve(final int loader, final String name, final Object templateSource) {
+        RenderTrace trace = RenderTrace.current();
+        if (trace != null) {
+            trace.served(name, loaderNames[loader]);
+        }
+        return new CompositeSource(loader, templateSource);
+    }
+
+    /**
+     * Creates a lookup to run on a lookup thread, with the thread context and the trace of the calling thread.
+     * 
+     * @param loader
+     *            index of the loader to ask
+     * @param name
+     *            the name of the template
+     * @return the lookup
+     */
+    private Callable<Object> createLookup(final int loader, final String name) {
+        final RenderTrace trace = RenderTrace.current();
+        Callable<Object> lookup = new Callable<Object>() {
+            public Object call() throws IOException {
+                RenderTrace previous = RenderTrace.bind(trace);
+                try {
+                    return find(loader, name);
+                } finally {
+                    RenderTrace.bind(previous);
+                }
+            }
+        };
+        if (loaders[loader] instanceof AbstractFreemarkerTemplateLoader) {
+            return ((AbstractFreemarkerTemplateLoader) loaders[loader]).inheritThreadState(lookup);
+        }
+        return lookup;
+    }
+
+    /**
+     * Waits for the result of a lookup.
+     * 
+     * @param lookup
+     *            the lookup
+     * @param name
+     *            the name of the template
+     * @return the template source or <code>null</code> if the loader doesn't have the template
+     * @throws IOException
+     *             if the lookup failed or the calling thread was interrupted
+     */
+    private Object getResult(final Future<Object> lookup, final String name) throws IOException {
+        try {
+            return lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while looking up " + name);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            LOGGER.warn("Could not look up template " + name, e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * @return the executor running the lookups, created on first use
+     */
+    private synchronized ThreadPoolExecutor getLookupExecutor() {
+        if (lookupExecutor == null) {
+            lookupExecutor = new ThreadPoolExecutor(0, lookupThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new NamedThreadFactory("template-lookup"), new RejectedExecutionHandler() {
+                        public void rejectedExecution(final Runnable lookup, final ThreadPoolExecutor executor) {
+                            // All lookup threads are busy or the loader is shutting down, run the lookup in the calling thread
+                            lookup.run();
+                        }
+                    });
+        }
+        return lookupExecutor;
+    }
+
+    /**
+     * A template source found by one of the loaders.
+     */
+    private static final class CompositeSource {
+
+        /** Index of the loader that found the template. */
+        private final int loader;
+
+        /** The template source of the loader. */
+        private final Object templateSource;
+
+        /**
+         * @param loader
+         *            index of the loader that found the template
+         * @param templateSource
+         *            the template source of the loader
+         */
+        private CompositeSource(final int loader, final Object templateSource) {
+            this.loader = loader;
+            this.templateSource = templateSource;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        public boolean equals(final Object o) {
+            if (!(o instanceof CompositeSource)) {
+                return false;
+            }
+            CompositeSource other = (CompositeSource) o;
+            return loader == other.loader && templateSource.equals(other.templateSource);
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#hashCode()
+         */
+        public int hashCode() {
+            return 31 * loader + templateSource.hashCode();
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        public String toString() {
+            return templateSource.toString();
+        }
+    }
+}
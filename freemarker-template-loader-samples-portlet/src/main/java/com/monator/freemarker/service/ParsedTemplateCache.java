@@ -0,0 +1,169 @@
+package com.monator.freemarker.service;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+/**
+ * A size bounded cache of parsed templates keyed by the hash of their source. Templates with the same source are parsed once, even when
+ * FreeMarker caches them under different names, e.g. the same template served for several Sites or under several names.
+ * 
+ * The key also holds the settings of the configuration, the locale and the encoding. Each locale gets its own parsed template, since
+ * the locale is set on the template and used when it is rendered. A template that includes or imports other templates
+ * is only shared between names in the same directory of the same configuration, since relative paths are resolved against the name of
+ * the template and the included templates are loaded through the configuration it was parsed with. A shared template otherwise keeps
+ * the name it was first parsed with, which only shows in error messages.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class ParsedTemplateCache {
+
+    /** Digest algorithm used to hash template sources. */
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    /** Characters used when printing a hash. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Maximum number of parsed templates held by the cache. */
+    private final int maxTemplates;
+
+    /** The parsed templates in access order, least recently used first. */
+    private final Map<String, Template> templates;
+
+    /** Coalesces concurrent parses of the same source. */
+    private final SingleFlight<Template> parses = new SingleFlight<Template>();
+
+    /**
+     * Creates a new parsed template cache.
+     * 
+     * @param maxTemplates
+     *            maximum number of parsed templates to hold
+     */
+    public ParsedTemplateCache(final int maxTemplates) {
+        this.maxTemplates = maxTemplates;
+        this.templates = new LinkedHashMap<String, Template>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(final Map.Entry<String, Template> eldest) {
+                return size() > ParsedTemplateCache.this.maxTemplates;
+            }
+        };
+    }
+
+    /**
+     * Returns the parsed template for a source, parsing it if no template with the same source has been parsed with the same settings.
+     * 
+     * @param config
+     *            the configuration to parse the template with
+     * @param settingsKey
+     *            key of the settings of the configuration, configurations with the same key share templates
+     * @param name
+     *            the name of the template
+     * @param source
+     *            the source of the template
+     * @param locale
+     *            the locale of the template
+     * @param encoding
+     *            the encoding of the template
+     * @return the parsed template
+     * @throws IOException
+     *             if the template could not be parsed
+     */
+    public final Template getTemplate(final Configuration config, final String settingsKey, final String name, final String source,
+            final Locale locale, final String encoding) throws IOException {
+        final String key = settingsKey + "|" + locale + "|" + encoding + "|" + getIncludeScope(config, name, source) + "|" + hash(source);
+        Template template = get(key);
+        if (template != null) {
+            return template;
+        }
+        return parses.execute(key, new Callable<Template>() {
+            public Template call() throws IOException {
+                Template parsed = new Template(name, new StringReader(source), config, encoding);
+                parsed.setLocale(locale);
+                synchronized (templates) {
+                    templates.put(key, parsed);
+                }
+                return parsed;
+            }
+        });
+    }
+
+    /**
+     * Removes all templates from the cache.
+     */
+    public final void clear() {
+        synchronized (templates) {
+            templates.clear();
+        }
+    }
+
+    /**
+     * @return the number of parsed templates held by the cache
+     */
+    public final int size() {
+        synchronized (templates) {
+            return templates.size();
+        }
+    }
+
+    /**
+     * @param key
+     *            the cache key
+     * @return the cached template or <code>null</code> if missing
+     */
+    private Template get(final String key) {
+        synchronized (templates) {
+            return templates.get(key);
+        }
+    }
+
+    /**
+     * Returns the configuration and directory that the templates included or imported by a template are loaded from, or an empty string
+     * if the template doesn't include or import other templates.
+     * 
+     * @param config
+     *            the configuration the template is parsed with
+     * @param name
+     *            the name of the template
+     * @param source
+     *            the source of the template
+     * @return the include scope of the template, or an empty string
+     */
+    private String getIncludeScope(final Configuration config, final String name, final String source) {
+        if (source.indexOf("#include") < 0 && source.indexOf("#import") < 0) {
+            return "";
+        }
+        return System.identityHashCode(config) + "@" + name.substring(0, name.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * @param source
+     *            the source of a template
+     * @return the hash of the source in hexadecimal
+     */
+    private String hash(final String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance(DIGEST_ALGORITHM).digest(source.getBytes("UTF-8"));
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+                hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is not available", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.monator.freemarker.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent calls for the same key, so that only one of them runs the backend call while the others wait for it and share
+ * its result or exception. Calls made after the running call has finished start a new one, nothing is cached.
+ * 
+ * @param <T>
+ *            the result type of the calls
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public final class SingleFlight<T> {
+
+    /** The calls in flight by key. */
+    private final ConcurrentMap<String, FutureTask<T>> calls = new ConcurrentHashMap<String, FutureTask<T>>();
+
+    /**
+     * Runs a call in the calling thread, or waits for the call already running for the same key.
+     * 
+     * @param key
+     *            the key of the call
+     * @param call
+     *            the call to run
+     * @return the result of the call
+     * @throws IOException
+     *             if the call failed with an IO exception or the waiting thread was interrupted
+     */
+    public T execute(final String key, final Callable<T> call) throws IOException {
+        FutureTask<T> task = new FutureTask<T>(call);
+        FutureTask<T> running = calls.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                calls.remove(key, task);
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            IOException ioe = new IOException("Call for " + key + " failed: " + cause);
+            ioe.initCause(cause);
+            throw ioe;
+        }
+    }
+
+    /**
+     * @return the number of calls currently in flight
+     */
+    public int size() {
+        return calls.size();
+    }
+}
@@ -0,0 +1,95 @@
+package com.monator.freemarker.service;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A template source read from the {@link TemplateSnapshotStore}, served by the template loaders until the template has been looked up in
+ * its repository again. The content is a view of the memory mapped snapshot file and is only copied when the template is read.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public final class SnapshotTemplateSource {
+
+    /** The name of the template, as requested by FreeMarker. */
+    private final String name;
+
+    /** The id of the template in its repository. */
+    private final String id;
+
+    /** The version of the template the snapshot was taken at. */
+    private final String version;
+
+    /** Time the template was last modified in its repository. */
+    private final long lastModified;
+
+    /** The content of the template. */
+    private final ByteBuffer content;
+
+    /**
+     * Creates a new snapshot template source.
+     * 
+     * @param name
+     *            the name of the template
+     * @param id
+     *            the id of the template in its repository
+     * @param version
+     *            the version the snapshot was taken at, may be <code>null</code>
+     * @param lastModified
+     *            time the template was last modified in its repository
+     * @param content
+     *            the content of the template
+     */
+    SnapshotTemplateSource(final String name, final String id, final String version, final long lastModified, final ByteBuffer content) {
+        this.name = name;
+        this.id = id;
+        this.version = version;
+        this.lastModified = lastModified;
+        this.content = content;
+    }
+
+    /**
+     * @return the name of the template
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the id of the template in its repository
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the version the snapshot was taken at, or <code>null</code> if unknown
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return time the template was last modified in its repository
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return a copy of the content of the template
+     */
+    public byte[] getContent() {
+        ByteBuffer buffer = content.duplicate();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return "snapshot:" + name;
+    }
+}
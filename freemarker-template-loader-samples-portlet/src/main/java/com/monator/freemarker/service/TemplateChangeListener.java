@@ -0,0 +1,18 @@
+package com.monator.freemarker.service;
+
+/**
+ * Listener that is notified when a template loader learns that one of its templates has been changed or removed in the repository.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public interface TemplateChangeListener {
+
+    /**
+     * Called when a template has been changed or removed.
+     * 
+     * @param name
+     *            the name of the template, as requested by FreeMarker, or <code>null</code> if any template may have changed
+     */
+    void templateChanged(String name);
+}
@@ -0,0 +1,141 @@
+package com.monator.freemarker.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size bounded, in-memory cache for template content. Entries are keyed by the id of the template in its repository and hold the
+ * version the content was read at, so a lookup only hits while the cached bytes still belong to the current version of the template.
+ * When the total size exceeds the limit the least recently used templates are evicted.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class TemplateContentCache {
+
+    /** Maximum number of content bytes held by the cache. */
+    private final long maxBytes;
+
+    /** Number of content bytes currently held by the cache. */
+    private long currentBytes;
+
+    /** The cached entries in access order, least recently used first. */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * Creates a new content cache.
+     * 
+     * @param maxBytes
+     *            maximum number of content bytes to hold in memory
+     */
+    public TemplateContentCache(final long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached content of a template if it was cached for the given version.
+     * 
+     * @param id
+     *            the id of the template in its repository
+     * @param version
+     *            the current version of the template
+     * @return the cached content or <code>null</code> if missing or cached for another version
+     */
+    public final synchronized byte[] get(final String id, final String version) {
+        Entry entry = entries.get(id);
+        if (entry == null || version == null || !version.equals(entry.version)) {
+            return null;
+        }
+        return entry.content;
+    }
+
+    /**
+     * Returns the cached content of a template whatever version it was cached for, to serve while the backend is unavailable.
+     * 
+     * @param id
+     *            the id of the template in its repository
+     * @return the cached content or <code>null</code> if missing
+     */
+    public final synchronized byte[] getAnyVersion(final String id) {
+        Entry entry = entries.get(id);
+        return entry != null ? entry.content : null;
+    }
+
+    /**
+     * Caches the content of a template, replacing any content cached for an earlier version. Content larger than the whole cache and
+     * content without a version is not cached.
+     * 
+     * @param id
+     *            the id of the template in its repository
+     * @param version
+     *            the version the content was read at
+     * @param content
+     *            the content of the template
+     */
+    public final synchronized void put(final String id, final String version, final byte[] content) {
+        remove(id);
+        if (version == null || content.length > maxBytes) {
+            return;
+        }
+        entries.put(id, new Entry(version, content));
+        currentBytes += content.length;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (currentBytes > maxBytes && eldest.hasNext()) {
+            currentBytes -= eldest.next().content.length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Removes the content of a template from the cache.
+     * 
+     * @param id
+     *            the id of the template in its repository
+     */
+    public final synchronized void remove(final String id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            currentBytes -= entry.content.length;
+        }
+    }
+
+    /**
+     * Removes all content from the cache.
+     */
+    public final synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    /**
+     * @return the number of content bytes currently held by the cache
+     */
+    public final synchronized long getSize() {
+        return currentBytes;
+    }
+
+    /**
+     * A cached template version.
+     */
+    private static final class Entry {
+
+        /** The version the content was read at. */
+        private final String version;
+
+        /** The content of the template. */
+        private final byte[] content;
+
+        /**
+         * @param version
+         *            the version the content was read at
+         * @param content
+         *            the content of the template
+         */
+        private Entry(final String version, final byte[] content) {
+            this.version = version;
+            this.content = content;
+        }
+    }
+}
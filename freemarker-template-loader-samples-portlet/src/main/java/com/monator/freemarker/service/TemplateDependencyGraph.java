@@ -0,0 +1,98 @@
+package com.monator.freemarker.service;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+import com.monator.freemarker.util.SiteTemplateNameUtil;
+
+/**
+ * Remembers which templates include or import which, so that the templates depending on a changed template, directly or through other
+ * templates, can be found.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class TemplateDependencyGraph {
+
+    /** The templates each template includes or imports. */
+    private final Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+
+    /** The templates that include or import each template. */
+    private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+
+    /**
+     * Sets the templates a template includes or imports, replacing those found in an earlier version of it.
+     * 
+     * @param name
+     *            the name of the template
+     * @param templateDependencies
+     *            the names of the included and imported templates
+     */
+    public final synchronized void setDependencies(final String name, final Collection<String> templateDependencies) {
+        Set<String> previous = dependencies.remove(name);
+        if (previous != null) {
+            for (String dependency : previous) {
+                Set<String> names = dependents.get(dependency);
+                names.remove(name);
+                if (names.isEmpty()) {
+                    dependents.remove(dependency);
+                }
+            }
+        }
+        if (templateDependencies.isEmpty()) {
+            return;
+        }
+        dependencies.put(name, new HashSet<String>(templateDependencies));
+        for (String dependency : templateDependencies) {
+            Set<String> names = dependents.get(dependency);
+            if (names == null) {
+                names = new HashSet<String>();
+                dependents.put(dependency, names);
+            }
+            names.add(name);
+        }
+    }
+
+    /**
+     * Returns the templates that depend on a template directly or through other templates. The template is matched by name and by its
+     * name qualified with any Site.
+     * 
+     * @param name
+     *            the name of the template
+     * @return the names of the dependent templates
+     */
+    public final synchronized Set<String> getDependents(final String name) {
+        Set<String> found = new LinkedHashSet<String>();
+        LinkedList<String> queue = new LinkedList<String>();
+        for (String dependency : dependents.keySet()) {
+            if (dependency.equals(name) || SiteTemplateNameUtil.getTemplateName(dependency).equals(name)) {
+                queue.add(dependency);
+            }
+        }
+        while (!queue.isEmpty()) {
+            Set<String> names = dependents.get(queue.removeFirst());
+            if (names == null) {
+                continue;
+            }
+            for (String dependent : names) {
+                if (found.add(dependent)) {
+                    queue.add(dependent);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Forgets all dependencies.
+     */
+    public final synchronized void clear() {
+        dependencies.clear();
+        dependents.clear();
+    }
+}
@@ -0,0 +1,108 @@
+package com.monator.freemarker.service;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the template names in the template folders of a loader, built from one listing of each folder. While a folder's listing is
+ * fresh, a name that isn't in it, e.g. one of the localized variants FreeMarker probes for, is known to be missing without asking the
+ * backend. Names in the listing are still looked up, so the index never serves template content.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class TemplateNameIndex {
+
+    /** Time in milliseconds a folder listing is used. */
+    private final long ttl;
+
+    /** The folder listings by folder key. */
+    private final Map<String, Listing> listings = new ConcurrentHashMap<String, Listing>();
+
+    /**
+     * Creates a new template name index.
+     * 
+     * @param ttl
+     *            time in milliseconds a folder listing is used before the folder has to be listed again
+     */
+    public TemplateNameIndex(final long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Checks if a name is in the listing of a folder.
+     * 
+     * @param folderKey
+     *            the key of the folder
+     * @param name
+     *            the template name
+     * @return {@link Boolean#TRUE} if the name is listed, {@link Boolean#FALSE} if it isn't, or <code>null</code> if the folder has no
+     *         fresh listing and has to be listed
+     */
+    public final Boolean contains(final String folderKey, final String name) {
+        Listing listing = listings.get(folderKey);
+        if (listing == null) {
+            return null;
+        }
+        if (listing.expires < System.currentTimeMillis()) {
+            listings.remove(folderKey);
+            return null;
+        }
+        return Boolean.valueOf(listing.names.contains(name));
+    }
+
+    /**
+     * Stores the listing of a folder, replacing the earlier one.
+     * 
+     * @param folderKey
+     *            the key of the folder
+     * @param names
+     *            the names of all templates in the folder
+     */
+    public final void put(final String folderKey, final Collection<String> names) {
+        listings.put(folderKey, new Listing(new HashSet<String>(names), System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Drops the listing of a folder, e.g. when a template has been added to it or renamed.
+     * 
+     * @param folderKey
+     *            the key of the folder
+     */
+    public final void remove(final String folderKey) {
+        listings.remove(folderKey);
+    }
+
+    /**
+     * Drops all listings.
+     */
+    public final void clear() {
+        listings.clear();
+    }
+
+    /**
+     * The names listed in a folder.
+     */
+    private static final class Listing {
+
+        /** The template names in the folder. */
+        private final Set<String> names;
+
+        /** Time when the listing expires. */
+        private final long expires;
+
+        /**
+         * @param names
+         *            the template names in the folder
+         * @param expires
+         *            time when the listing expires
+         */
+        private Listing(final Set<String> names, final long expires) {
+            this.names = names;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.monator.freemarker.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.StringUtils;
+import org.springframework.web.servlet.view.freemarker.FreeMarkerConfig;
+
+import com.monator.freemarker.util.NamedThreadFactory;
+
+import freemarker.cache.TemplateLoader;
+import freemarker.core.ParseException;
+
+/**
+ * Loads and parses every template the template loaders can list into FreeMarker's template cache, on a pool of threads, for each of the
+ * configured locales. When run as the init method of the bean in blocking mode, the application context and with it the portlets only
+ * start once all templates have been compiled, so the first request for a view doesn't pay for fetching and parsing it. Otherwise the
+ * templates are compiled in the background, so the portlets start right away and the first requests for views are served while the
+ * cache warms up. Syntax errors are logged instead of being found at render time, and a timing report lists the slowest templates.
+ * Neither listing nor compiling the templates creates a missing Site, template folder or default template.
+ * 
+ * The views request templates by their Site qualified name, <code>_site/&lt;groupId&gt;/&lt;name&gt;</code>, which FreeMarker caches
+ * separately from the plain names compiled here, since the Sites that will render views aren't known on startup. The first request of
+ * a Site still looks the template up. When it resolves to a compiled template, the content is read from the content cache of the loader
+ * and, for templates without includes or imports, the parsed template is taken from the {@link ParsedTemplateCache}.
+ * 
+ * When a loader reports that all templates may have changed, e.g. when the CMIS loader has connected to its repository, the templates
+ * are compiled again in the background.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class TemplatePrecompiler implements TemplateChangeListener {
+
+    /** Constant to use for logging. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(TemplatePrecompiler.class);
+
+    /** Number of slowest templates listed in the timing report. */
+    private static final int REPORTED_TEMPLATES = 5;
+
+    /** The FreeMarker configuration holding the template cache. */
+    private final FreeMarkerConfig freemarkerConfig;
+
+    /** The template loaders to list the templates of. */
+    private final List<TemplateLoader> templateLoaders;
+
+    /** Determines if the templates are compiled when the precompiler is initialized. */
+    private boolean precompileOnStartup = true;
+
+    /** Determines if initializing the precompiler waits until the templates have been compiled. */
+    private boolean blocking = true;
+
+    /** The locales to compile the templates for, empty for the default locale of the configuration. */
+    private List<Locale> locales = Collections.emptyList();
+
+    /** Number of templates compiled in parallel. */
+    private int threads = 1;
+
+    /** Executor compiling the templates again in the background, <code>null</code> until needed. */
+    private ExecutorService recompileExecutor;
+
+    /** Set while a background compilation is waiting to run. */
+    private final AtomicBoolean recompilePending = new AtomicBoolean();
+
+    /**
+     * Creates a new precompiler and registers it with all observable template loaders in the list.
+     * 
+     * @param freemarkerConfig
+     *            the FreeMarker configuration holding the template cache
+     * @param templateLoaders
+     *            the template loaders to list the templates of
+     */
+    public TemplatePrecompiler(final FreeMarkerConfig freemarkerConfig, final List<TemplateLoader> templateLoaders) {
+        this.freemarkerConfig = freemarkerConfig;
+        this.templateLoaders = templateLoaders;
+        for (TemplateLoader templateLoader : templateLoaders) {
+            if (templateLoader instanceof ObservableTemplateLoader) {
+                ((ObservableTemplateLoader) templateLoader).addTemplateChangeListener(this);
+            }
+        }
+    }
+
+    /**
+     * Determines if the templates are compiled when the precompiler is initialized, and again when all templates have changed.
+     * 
+     * @param precompileOnStartup
+     *            if true, the templates are precompiled
+     */
+    public final void setPrecompileOnStartup(final boolean precompileOnStartup) {
+        this.precompileOnStartup = precompileOnStartup;
+    }
+
+    /**
+     * Determines if the templates are compiled before the precompiler is initialized, holding up the start of the portlets, or in the
+     * background. Compiling them again when all templates have changed always happens in the background.
+     * 
+     * @param blocking
+     *            if true, initializing the precompiler waits until the templates have been compiled
+     */
+    public final void setBlocking(final boolean blocking) {
+        this.blocking = blocking;
+    }
+
+    /**
+     * Sets the locales to compile the templates for, which should be the locales the views are rendered in.
+     * 
+     * @param locales
+     *            comma separated locales, e.g. <code>en_US,sv_SE</code>, empty for the default locale of the configuration
+     */
+    public final void setLocales(final String locales) {
+        List<Locale> parsed = new ArrayList<Locale>();
+        for (String locale : StringUtils.commaDelimitedListToStringArray(locales)) {
+            if (locale.trim().length() > 0) {
+                parsed.add(StringUtils.parseLocaleString(locale.trim()));
+            }
+        }
+        this.locales = parsed;
+    }
+
+    /**
+     * Sets the number of templates compiled in parallel.
+     * 
+     * @param threads
+     *            the number of threads
+     */
+    public final void setThreads(final int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Compiles all templates if enabled, before returning in blocking mode and in the background otherwise.
+     */
+    public final void init() {
+        if (!precompileOnStartup) {
+            return;
+        }
+        if (blocking) {
+            precompile();
+        } else {
+            templateChanged(null);
+        }
+    }
+
+    /**
+     * Stops a background compilation.
+     */
+    public final synchronized void destroy() {
+        if (recompileExecutor != null) {
+            recompileExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Compiles the templates again in the background when all of them may have changed.
+     * 
+     * {@inheritDoc}
+     */
+    public final void templateChanged(final String name) {
+        if (name != null || !precompileOnStartup || !recompilePending.compareAndSet(false, true)) {
+            return;
+        }
+        getRecompileExecutor().submit(new Runnable() {
+            public void run() {
+                recompilePending.set(false);
+                precompile();
+            }
+        });
+    }
+
+    /**
+     * Lists the templates of all loaders, loads and parses them into FreeMarker's template cache in parallel for each locale and logs a
+     * timing report and any syntax errors. A template found by more than one loader is compiled once per locale, from the loader
+     * FreeMarker picks.
+     */
+    public final void precompile() {
+        long start = System.currentTimeMillis();
+        Set<String> names = new LinkedHashSet<String>();
+        for (TemplateLoader templateLoader : templateLoaders) {
+            if (templateLoader instanceof AbstractFreemarkerTemplateLoader) {
+                try {
+                    names.addAll(((AbstractFreemarkerTemplateLoader) templateLoader).getTemplateNames());
+                } catch (IOException e) {
+                    LOGGER.warn("Could not list the templates of " + templateLoader.getClass().getSimpleName() + ": " + e.getMessage());
+                }
+            }
+        }
+        long listTime = System.currentTimeMillis() - start;
+
+        List<Locale> compileLocales = locales.isEmpty() ? Collections.singletonList(freemarkerConfig.getConfiguration().getLocale())
+                : locales;
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("template-precompile"));
+        Map<String, Future<Long>> compiles = new LinkedHashMap<String, Future<Long>>();
+        try {
+            for (String name : names) {
+                for (Locale locale : compileLocales) {
+                    String key = compileLocales.size() > 1 ? name + " (" + locale + ")" : name;
+                    compiles.put(key, executor.submit(createCompile(name, locale)));
+                }
+            }
+
+            Map<String, Long> times = new LinkedHashMap<String, Long>();
+            int syntaxErrors = 0;
+            for (Map.Entry<String, Future<Long>> compile : compiles.entrySet()) {
+                try {
+                    times.put(compile.getKey(), compile.getValue().get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof ParseException) {
+                        syntaxErrors++;
+                        LOGGER.error("Syntax error in template " + compile.getKey() + ": " + e.getCause().getMessage());
+                    } else {
+                        LOGGER.warn("Could not compile template " + compile.getKey() + ": " + e.getCause());
+                    }
+                }
+            }
+            LOGGER.info("Compiled " + times.size() + " of " + compiles.size() + " templates in " + (System.currentTimeMillis() - start)
+                    + " ms (listing " + listTime + " ms), " + syntaxErrors + " with syntax errors" + getSlowest(times));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates a task that gets a template from FreeMarker, which loads and parses it into the template cache. The lookups of the task
+     * don't create missing content, so that a name listed by one loader never makes another loader create its Site or folder.
+     * 
+     * @param name
+     *            the name of the template
+     * @param locale
+     *            the locale to compile the template for
+     * @return the task, returning the time in milliseconds it took to compile the template
+     */
+    private Callable<Long> createCompile(final String name, final Locale locale) {
+        return new Callable<Long>() {
+            public Long call() throws Exception {
+                return AbstractFreemarkerTemplateLoader.callWithoutCreating(new Callable<Long>() {
+                    public Long call() throws IOException {
+                        long start = System.currentTimeMillis();
+                        freemarkerConfig.getConfiguration().getTemplate(name, locale);
+                        return Long.valueOf(System.currentTimeMillis() - start);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * @param times
+     *            the compile times by template name
+     * @return the slowest templates and their compile times, for the timing report
+     */
+    private String getSlowest(final Map<String, Long> times) {
+        List<Map.Entry<String, Long>> slowest = new ArrayList<Map.Entry<String, Long>>(times.entrySet());
+        Collections.sort(slowest, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(final Map.Entry<String, Long> a, final Map.Entry<String, Long> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Long> time : slowest.subList(0, Math.min(REPORTED_TEMPLATES, slowest.size()))) {
+            report.append(report.length() == 0 ? ", slowest: " : ", ").append(time.getKey()).append(' ').append(time.getValue())
+                    .append(" ms");
+        }
+        return report.toString();
+    }
+
+    /**
+     * @return the executor compiling the templates in the background, created on first use
+     */
+    private synchronized ExecutorService getRecompileExecutor() {
+        if (recompileExecutor == null) {
+            recompileExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("template-recompile"));
+        }
+        return recompileExecutor;
+    }
+}
@@ -0,0 +1,462 @@
+package com.monator.freemarker.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local, persistent snapshot of the templates served by the template loaders, so that a restarted portlet can render right away
+ * instead of fetching every template over the network first, and keeps rendering when the repository is slow or down.
+ * 
+ * The snapshot is a single append-only file. Every time a loader reads a new version of a template, a record holding the loader's
+ * namespace, the template name, id, version, last modification time and content is appended, a later record for the same template
+ * replacing the earlier ones. On startup the file is memory mapped and indexed, the content is only copied when a template is read.
+ * Each record carries a checksum, so a record torn by a crash is cut off instead of being served. Once most of the file is replaced
+ * records it is compacted, on startup or as soon as a write tips it over, by copying the latest record of each template to a new file.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class TemplateSnapshotStore {
+
+    /** Name of the snapshot file. */
+    private static final String FILE_NAME = "freemarker-templates.snapshot";
+
+    /** Marks the start of a snapshot file, "FMTS". */
+    private static final int MAGIC = 0x464d5453;
+
+    /** Version of the file format. */
+    private static final int FORMAT_VERSION = 1;
+
+    /** Length of the file header, magic and format version. */
+    private static final int HEADER_LENGTH = 8;
+
+    /** Length of a record header, payload length and checksum. */
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    /** File size below which the file is never compacted. */
+    private static final long MIN_COMPACT_LENGTH = 1024 * 1024;
+
+    /** Charset of the strings in the records. */
+    private static final String CHARSET = "UTF-8";
+
+    /** Constant to use for logging. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(TemplateSnapshotStore.class);
+
+    /** The snapshot file. */
+    private final File file;
+
+    /** Determines if templates are read from and written to the snapshot. */
+    private final boolean enabled;
+
+    /** Templates read from the snapshot on startup and not yet taken by a loader, by namespace and name. */
+    private final Map<String, SnapshotTemplateSource> snapshots = new ConcurrentHashMap<String, SnapshotTemplateSource>();
+
+    /** Latest version written for each template, by namespace and name, guarded by <code>this</code>. */
+    private final Map<String, String> writtenVersions = new HashMap<String, String>();
+
+    /** Position and length of the latest record of each template in the file, by namespace and name, guarded by <code>this</code>. */
+    private final Map<String, long[]> liveRecords = new HashMap<String, long[]>();
+
+    /** Number of bytes taken up by the latest record of each template, guarded by <code>this</code>. */
+    private long liveLength;
+
+    /** The open snapshot file, <code>null</code> when the snapshot is disabled or could not be opened. */
+    private RandomAccessFile snapshotFile;
+
+    /**
+     * Creates a new snapshot store.
+     * 
+     * @param directory
+     *            the directory to keep the snapshot file in, created if missing
+     * @param enabled
+     *            if false, the store neither reads nor writes any snapshot
+     */
+    public TemplateSnapshotStore(final File directory, final boolean enabled) {
+        this.file = new File(directory, FILE_NAME);
+        this.enabled = enabled;
+    }
+
+    /**
+     * Opens the snapshot file and reads the templates in it. A snapshot that can't be opened is logged and the store disabled, the
+     * loaders then simply fetch all templates from their repositories.
+     */
+    public final synchronized void init() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            open();
+            if (needsCompaction()) {
+                compact();
+            }
+            LOGGER.info("Read " + snapshots.size() + " templates from the snapshot " + file);
+        } catch (IOException e) {
+            LOGGER.warn("Could not open the template snapshot " + file + ", continuing without it: " + e.getMessage());
+            close();
+            snapshots.clear();
+        }
+    }
+
+    /**
+     * Flushes and closes the snapshot file.
+     */
+    public final synchronized void destroy() {
+        if (snapshotFile != null) {
+            try {
+                snapshotFile.getChannel().force(false);
+            } catch (IOException e) {
+                LOGGER.warn("Could not flush the template snapshot " + file + ": " + e.getMessage());
+            }
+        }
+        close();
+    }
+
+    /**
+     * Takes a template from the snapshot read on startup. Each template is handed out once, after that the loader is expected to keep
+     * track of it.
+     * 
+     * @param namespace
+     *            the namespace of the loader
+     * @param name
+     *            the name of the template
+     * @return the template source or <code>null</code> if the template isn't in the snapshot or has already been taken
+     */
+    public final SnapshotTemplateSource take(final String namespace, final String name) {
+        return snapshots.remove(getKey(namespace, name));
+    }
+
+    /**
+     * Appends a template to the snapshot, unless the same version has already been written, and compacts the snapshot when most of it
+     * is replaced records.
+     * 
+     * @param namespace
+     *            the namespace of the loader
+     * @param name
+     *            the name of the template
+     * @param id
+     *            the id of the template in its repository
+     * @param version
+     *            the version the content was read at, may be <code>null</code>
+     * @param lastModified
+     *            time the template was last modified in its repository
+     * @param content
+     *            the content of the template
+     */
+    public final synchronized void put(final String namespace, final String name, final String id, final String version,
+            final long lastModified, final byte[] content) {
+        if (snapshotFile == null) {
+            return;
+        }
+        String key = getKey(namespace, name);
+        if (version != null && version.equals(writtenVersions.get(key))) {
+            return;
+        }
+        try {
+            long position = snapshotFile.getChannel().position();
+            int recordLength = append(snapshotFile.getChannel(), namespace, name, id, version, lastModified, ByteBuffer.wrap(content));
+            writtenVersions.put(key, version);
+            setLiveRecord(key, position, recordLength);
+        } catch (IOException e) {
+            LOGGER.warn("Could not write " + name + " to the template snapshot, disabling it: " + e.getMessage());
+            close();
+            return;
+        }
+        try {
+            if (needsCompaction()) {
+                compact();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Could not compact the template snapshot, disabling it: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Opens the snapshot file, writing the header to a new file, and indexes the records in it. A torn record at the end of the file is
+     * cut off, so that new records are appended after the last complete one.
+     * 
+     * @throws IOException
+     *             if the file could not be opened or isn't a snapshot file
+     */
+    private void open() throws IOException {
+        file.getParentFile().mkdirs();
+        snapshotFile = new RandomAccessFile(file, "rw");
+        FileChannel channel = snapshotFile.getChannel();
+        if (channel.size() < HEADER_LENGTH) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+        }
+
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (mapped.getInt() != MAGIC || mapped.getInt() != FORMAT_VERSION) {
+            throw new IOException("Not a template snapshot file of version " + FORMAT_VERSION);
+        }
+        long validLength = read(mapped);
+        if (validLength < channel.size()) {
+            LOGGER.warn("Cutting off " + (channel.size() - validLength) + " bytes of incomplete records from the template snapshot");
+            channel.truncate(validLength);
+        }
+        channel.position(validLength);
+    }
+
+    /**
+     * Indexes the records in the mapped snapshot file, stopping at the first incomplete or corrupt record.
+     * 
+     * @param mapped
+     *            the mapped file, positioned after the header
+     * @return the length of the file up to the end of the last complete record
+     */
+    private long read(final ByteBuffer mapped) {
+        int validLength = mapped.position();
+        try {
+            while (mapped.remaining() >= RECORD_HEADER_LENGTH) {
+                int start = mapped.position();
+                int length = mapped.getInt();
+                long checksum = mapped.getInt() & 0xffffffffL;
+                if (length < 0 || length > mapped.remaining()) {
+                    break;
+                }
+                ByteBuffer payload = mapped.slice();
+                payload.limit(length);
+                mapped.position(mapped.position() + length);
+                if (checksum != getChecksum(payload.duplicate())) {
+                    break;
+                }
+
+                String namespace = readString(payload);
+                String name = readString(payload);
+                String id = readString(payload);
+                String version = readString(payload);
+                long lastModified = payload.getLong();
+                int contentLength = payload.getInt();
+                ByteBuffer content = payload.slice();
+                content.limit(contentLength);
+
+                String key = getKey(namespace, name);
+                snapshots.put(key, new SnapshotTemplateSource(name, id, version.length() > 0 ? version : null, lastModified, content
+                        .asReadOnlyBuffer()));
+                writtenVersions.put(key, version.length() > 0 ? version : null);
+                setLiveRecord(key, start, RECORD_HEADER_LENGTH + length);
+                validLength = mapped.position();
+            }
+        } catch (BufferUnderflowException e) {
+            LOGGER.warn("Corrupt record in the template snapshot: " + e);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Corrupt record in the template snapshot: " + e);
+        }
+        return validLength;
+    }
+
+    /**
+     * @return true if the file is large enough to be compacted and more than half of it is replaced records
+     * @throws IOException
+     *             if the length of the file could not be read
+     */
+    private boolean needsCompaction() throws IOException {
+        long length = snapshotFile.length();
+        return length > MIN_COMPACT_LENGTH && length > 2 * (HEADER_LENGTH + liveLength);
+    }
+
+    /**
+     * Rewrites the snapshot file with only the latest record of each template, copied as they are. Templates already taken by the
+     * loaders are not handed out again from the compacted file.
+     * 
+     * @throws IOException
+     *             if the file could not be rewritten
+     */
+    private void compact() throws IOException {
+        long length = snapshotFile.length();
+        Set<String> untaken = new HashSet<String>(snapshots.keySet());
+        File compacted = new File(file.getPath() + ".tmp");
+        RandomAccessFile compactedFile = new RandomAccessFile(compacted, "rw");
+        try {
+            FileChannel channel = compactedFile.getChannel();
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+            channel.write(header);
+            FileChannel source = snapshotFile.getChannel();
+            for (long[] record : liveRecords.values()) {
+                for (long position = record[0], end = record[0] + record[1]; position < end;) {
+                    long transferred = source.transferTo(position, end - position, channel);
+                    if (transferred <= 0) {
+                        throw new IOException("Could not copy a record at " + position + " of " + file);
+                    }
+                    position += transferred;
+                }
+            }
+            channel.force(false);
+        } finally {
+            compactedFile.close();
+        }
+
+        close();
+        snapshots.clear();
+        writtenVersions.clear();
+        liveRecords.clear();
+        liveLength = 0;
+        if (!file.delete() || !compacted.renameTo(file)) {
+            throw new IOException("Could not replace " + file + " with the compacted snapshot");
+        }
+        open();
+        snapshots.keySet().retainAll(untaken);
+        LOGGER.info("Compacted the template snapshot from " + length + " to " + snapshotFile.length() + " bytes");
+    }
+
+    /**
+     * Appends a record to a snapshot file.
+     * 
+     * @param channel
+     *            the channel of the snapshot file, positioned at its end
+     * @param namespace
+     *            the namespace of the loader
+     * @param name
+     *            the name of the template
+     * @param id
+     *            the id of the template in its repository
+     * @param version
+     *            the version of the template, may be <code>null</code>
+     * @param lastModified
+     *            time the template was last modified in its repository
+     * @param content
+     *            the content of the template
+     * @return the length of the record
+     * @throws IOException
+     *             if the record could not be written
+     */
+    private int append(final FileChannel channel, final String namespace, final String name, final String id, final String version,
+            final long lastModified, final ByteBuffer content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.remaining() + 256);
+        DataOutputStream payload = new DataOutputStream(bytes);
+        writeString(payload, namespace);
+        writeString(payload, name);
+        writeString(payload, id);
+        writeString(payload, version != null ? version : "");
+        payload.writeLong(lastModified);
+        payload.writeInt(content.remaining());
+        payload.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+        payload.flush();
+
+        byte[] payloadBytes = bytes.toByteArray();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + payloadBytes.length);
+        record.putInt(payloadBytes.length);
+        record.putInt((int) getChecksum(ByteBuffer.wrap(payloadBytes)));
+        record.put(payloadBytes);
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        return record.limit();
+    }
+
+    /**
+     * Records the latest record of a template, replacing the earlier one.
+     * 
+     * @param key
+     *            the key of the template
+     * @param position
+     *            the position of the record in the file
+     * @param length
+     *            the length of the record
+     */
+    private void setLiveRecord(final String key, final long position, final long length) {
+        long[] replaced = liveRecords.put(key, new long[] {position, length});
+        liveLength += length - (replaced != null ? replaced[1] : 0);
+    }
+
+    /**
+     * Closes the snapshot file, after which nothing more is written.
+     */
+    private void close() {
+        if (snapshotFile != null) {
+            try {
+                snapshotFile.close();
+            } catch (IOException e) {
+                LOGGER.warn("Could not close the template snapshot " + file + ": " + e.getMessage());
+            }
+            snapshotFile = null;
+        }
+    }
+
+    /**
+     * @param buffer
+     *            the bytes to checksum
+     * @return the CRC32 checksum of the remaining bytes
+     */
+    private static long getChecksum(final ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[Math.min(buffer.remaining(), 8192)];
+        while (buffer.hasRemaining()) {
+            int length = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Writes a length prefixed UTF-8 string.
+     * 
+     * @param out
+     *            the stream to write to
+     * @param value
+     *            the string to write
+     * @throws IOException
+     *             if the string could not be written or is too long
+     */
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        byte[] bytes = value.getBytes(CHARSET);
+        if (bytes.length > 0xffff) {
+            throw new IOException("String too long for the template snapshot: " + value.substring(0, 64) + "...");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a length prefixed UTF-8 string.
+     * 
+     * @param buffer
+     *            the buffer to read from
+     * @return the string
+     */
+    private static String readString(final ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        try {
+            return new String(bytes, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param namespace
+     *            the namespace of the loader
+     * @param name
+     *            the name of the template
+     * @return the key of the template in the snapshot
+     */
+    private static String getKey(final String namespace, final String name) {
+        return namespace + '\n' + name;
+    }
+}
@@ -11,5 +11,7 @@ public class FreemarkerConstants {
 
     public static final long MISSING_FOLDER = -1;
     public static final long MISSING_SITE = -1;
+    public static final String TEMPLATE_SUFFIX = ".ftl";
+    public static final String LIFERAY_CACHE_NAME = "freemarkerCache";
 
 }
@@ -0,0 +1,38 @@
+package com.monator.freemarker.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ThreadFactory} creating named daemon threads, so that the background work of the template loaders is easy to spot in thread
+ * dumps and never keeps the portal from shutting down.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+    /** Prefix for the names of the created threads. */
+    private final String namePrefix;
+
+    /** Number of the next thread to create. */
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    /**
+     * Creates a new thread factory.
+     * 
+     * @param namePrefix
+     *            prefix for the names of the created threads
+     */
+    public NamedThreadFactory(final String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+     */
+    public final Thread newThread(final Runnable runnable) {
+        Thread thread = new Thread(runnable, namePrefix + "-" + threadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,67 @@
+package com.monator.freemarker.util;
+
+/**
+ * Helper methods for template names qualified with the Site they are requested for. FreeMarker caches templates by name, so the
+ * requesting Site has to be part of the name for Sites to get their own templates. The qualification is a folder,
+ * <code>_site/&lt;groupId&gt;/</code>, so relative includes and imports in a template stay within the same Site.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+public final class SiteTemplateNameUtil {
+
+    /** Prefix of qualified template names. */
+    private static final String PREFIX = "_site/";
+
+    /**
+     * Utility class, not to be instantiated.
+     */
+    private SiteTemplateNameUtil() {
+    }
+
+    /**
+     * @param groupId
+     *            the groupId of the requesting Site
+     * @param name
+     *            the name of the template
+     * @return the name of the template qualified with the Site
+     */
+    public static String qualify(final long groupId, final String name) {
+        return PREFIX + groupId + "/" + name;
+    }
+
+    /**
+     * @param name
+     *            a template name, qualified or not
+     * @return the groupId of the Site the name is qualified with, or 0 if it isn't qualified
+     */
+    public static long getGroupId(final String name) {
+        int end = getQualificationEnd(name);
+        if (end < 0) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @param name
+     *            a template name, qualified or not
+     * @return the name without Site qualification
+     */
+    public static String getTemplateName(final String name) {
+        int end = getQualificationEnd(name);
+        return end < 0 ? name : name.substring(end + 1);
+    }
+
+    /**
+     * @param name
+     *            a template name
+     * @return the index of the slash ending the qualification, or -1 if the name isn't qualified
+     */
+    private static int getQualificationEnd(final String name) {
+        return name.startsWith(PREFIX) ? name.indexOf('/', PREFIX.length()) : -1;
+    }
+}
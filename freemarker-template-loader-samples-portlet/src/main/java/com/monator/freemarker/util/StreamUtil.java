@@ -0,0 +1,45 @@
+package com.monator.freemarker.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Helper methods for working with the template content streams returned by the repositories.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+public final class StreamUtil {
+
+    /** Size of the buffer used when copying streams. */
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Utility class, not to be instantiated.
+     */
+    private StreamUtil() {
+    }
+
+    /**
+     * Reads the whole stream into a byte array and closes it.
+     * 
+     * @param is
+     *            the stream to read
+     * @return the content of the stream
+     * @throws IOException
+     *             if the stream could not be read
+     */
+    public static byte[] toByteArray(final InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+            }
+            return os.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
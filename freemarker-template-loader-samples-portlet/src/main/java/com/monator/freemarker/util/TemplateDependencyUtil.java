@@ -0,0 +1,79 @@
+package com.monator.freemarker.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Helper methods for finding the templates a template includes or imports. Only directives with a literal path are found, paths built
+ * with interpolations or using acquisition (<code>*</code>) are skipped.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+public final class TemplateDependencyUtil {
+
+    /** Matches <code>#include</code> and <code>#import</code> directives with a quoted path, in angle or square bracket syntax. */
+    private static final Pattern DIRECTIVE = Pattern.compile("[<\\[]#(?:include|import)\\s+(?:\"([^\"]*)\"|'([^']*)')");
+
+    /**
+     * Utility class, not to be instantiated.
+     */
+    private TemplateDependencyUtil() {
+    }
+
+    /**
+     * Finds the templates included or imported by a template, resolving relative paths against the name of the template the way
+     * FreeMarker does.
+     * 
+     * @param name
+     *            the name of the template
+     * @param source
+     *            the source of the template
+     * @return the names of the included and imported templates, in the order they first appear
+     */
+    public static Set<String> getDependencies(final String name, final String source) {
+        Set<String> dependencies = new LinkedHashSet<String>();
+        Matcher directive = DIRECTIVE.matcher(source);
+        while (directive.find()) {
+            String path = directive.group(1) != null ? directive.group(1) : directive.group(2);
+            if (path.length() == 0 || path.indexOf("${") >= 0 || path.indexOf('*') >= 0 || path.indexOf(':') >= 0) {
+                continue;
+            }
+            String resolved = resolve(name, path);
+            if (resolved != null) {
+                dependencies.add(resolved);
+            }
+        }
+        return dependencies;
+    }
+
+    /**
+     * @param name
+     *            the name of the including template
+     * @param path
+     *            the path in the directive
+     * @return the name of the included template, or <code>null</code> if the path leads outside the template root
+     */
+    private static String resolve(final String name, final String path) {
+        String fullPath = path.startsWith("/") ? path.substring(1) : name.substring(0, name.lastIndexOf('/') + 1) + path;
+        List<String> segments = new ArrayList<String>();
+        for (String segment : fullPath.split("/")) {
+            if (segment.equals("..")) {
+                if (segments.isEmpty()) {
+                    return null;
+                }
+                segments.remove(segments.size() - 1);
+            } else if (segment.length() > 0 && !segment.equals(".")) {
+                segments.add(segment);
+            }
+        }
+        StringBuilder resolved = new StringBuilder();
+        for (String segment : segments) {
+            resolved.append(resolved.length() == 0 ? "" : "/").append(segment);
+        }
+        return resolved.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package com.monator.freemarker.util;
+
+import com.liferay.portal.kernel.cache.MultiVMKeyPoolUtil;
+
+/**
+ * Helper methods for the markers in Liferay's multi VM cache that tell the template loaders on every node in the cluster that a
+ * template or template folder has changed.
+ * 
+ * A loader marks every file entry, missing template name, folder and folder listing it depends on and regularly checks that its markers are
+ * still there. The model listeners remove the markers of changed file entries and folders. Markers are only added when absent, which
+ * Liferay's clustered cache configuration doesn't replicate, while removals are replicated to all nodes, so a change made on one node is
+ * seen by the loaders on all of them without any polling of the database.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ */
+public final class TemplateMarkerUtil {
+
+    /**
+     * Utility class, not to be instantiated.
+     */
+    private TemplateMarkerUtil() {
+    }
+
+    /**
+     * @param fileEntryId
+     *            the id of a template file entry
+     * @return the marker key of the file entry
+     */
+    public static String getEntryKey(final long fileEntryId) {
+        return "freemarkerTemplateEntry#" + fileEntryId;
+    }
+
+    /**
+     * @param folderId
+     *            the id of the template folder
+     * @param name
+     *            the name of a template
+     * @return the marker key of the template name in the folder
+     */
+    public static String getNameKey(final long folderId, final String name) {
+        return "freemarkerTemplateName#" + folderId + "#" + name;
+    }
+
+    /**
+     * @param folderId
+     *            the id of the template folder
+     * @return the marker key of the listing of the template names in the folder
+     */
+    public static String getListingKey(final long folderId) {
+        return "freemarkerTemplateListing#" + folderId;
+    }
+
+    /**
+     * @param folderId
+     *            the id of the template folder or one of its parent folders
+     * @return the marker key of the folder
+     */
+    public static String getFolderKey(final long folderId) {
+        return "freemarkerTemplateFolder#" + folderId;
+    }
+
+    /**
+     * @param groupId
+     *            the groupId of a Site
+     * @return the marker key of the folders of the Site
+     */
+    public static String getSiteKey(final long groupId) {
+        return "freemarkerTemplateSite#" + groupId;
+    }
+
+    /**
+     * Adds a marker, unless it is already there.
+     * 
+     * @param key
+     *            the marker key
+     */
+    public static void mark(final String key) {
+        if (MultiVMKeyPoolUtil.get(FreemarkerConstants.LIFERAY_CACHE_NAME, key) == null) {
+            MultiVMKeyPoolUtil.put(FreemarkerConstants.LIFERAY_CACHE_NAME, key, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * @param key
+     *            the marker key
+     * @return true if the marker is still there
+     */
+    public static boolean isMarked(final String key) {
+        return MultiVMKeyPoolUtil.get(FreemarkerConstants.LIFERAY_CACHE_NAME, key) != null;
+    }
+
+    /**
+     * Removes a marker on all nodes.
+     * 
+     * @param key
+     *            the marker key
+     */
+    public static void unmark(final String key) {
+        MultiVMKeyPoolUtil.remove(FreemarkerConstants.LIFERAY_CACHE_NAME, key);
+    }
+}
@@ -0,0 +1,113 @@
+package com.monator.freemarker.view;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.monator.freemarker.metrics.RenderTrace;
+import com.monator.freemarker.service.ParsedTemplateCache;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+/**
+ * A FreeMarker {@link Configuration} that parses templates through a {@link ParsedTemplateCache}, so that templates with the same
+ * source are parsed once per locale. FreeMarker's own template cache still finds, caches and checks the templates for updates, but holds
+ * their source as plain text. The parsed template is remembered for each plain text template, so the source is only hashed again when
+ * FreeMarker has reloaded it.
+ * 
+ * The time spent getting parsed templates from the shared cache, parsing them when needed, is recorded as <code>parse</code> in the
+ * {@link RenderTrace} of the calling thread.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class SharedTemplateConfiguration extends Configuration {
+
+    /** The shared cache of parsed templates. */
+    private final ParsedTemplateCache parsedTemplates;
+
+    /** Key of the settings of this configuration. */
+    private final String settingsKey;
+
+    /** The parsed template, or the parse error, of each plain text template in FreeMarker's template cache. */
+    private final Map<Template, Object> parsedByText = new WeakHashMap<Template, Object>();
+
+    /**
+     * Creates a new configuration.
+     * 
+     * @param parsedTemplates
+     *            the shared cache of parsed templates
+     * @param settingsKey
+     *            key of the settings of this configuration, configurations with the same key share parsed templates
+     */
+    public SharedTemplateConfiguration(final ParsedTemplateCache parsedTemplates, final String settingsKey) {
+        this.parsedTemplates = parsedTemplates;
+        this.settingsKey = settingsKey;
+    }
+
+    /**
+     * Gets the template from FreeMarker's template cache as plain text and returns the parsed template from the shared cache.
+     * 
+     * {@inheritDoc}
+     */
+    public Template getTemplate(final String name, final Locale locale, final String encoding, final boolean parse) throws IOException {
+        Template text = super.getTemplate(name, locale, encoding, false);
+        if (!parse) {
+            return text;
+        }
+
+        Object parsed;
+        synchronized (parsedByText) {
+            parsed = parsedByText.get(text);
+        }
+        if (parsed == null) {
+            RenderTrace trace = RenderTrace.current();
+            long start = System.nanoTime();
+            try {
+                parsed = parsedTemplates.getTemplate(this, settingsKey, name, getSource(text), locale, encoding);
+            } catch (IOException e) {
+                // Remember the parse error until FreeMarker reloads the template, as FreeMarker's own cache does
+                parsed = e;
+            }
+            if (trace != null) {
+                trace.record("parse", System.nanoTime() - start);
+            }
+            synchronized (parsedByText) {
+                parsedByText.put(text, parsed);
+            }
+        }
+        if (parsed instanceof IOException) {
+            throw (IOException) parsed;
+        }
+        return (Template) parsed;
+    }
+
+    /**
+     * Forgets the parsed templates along with FreeMarker's template cache. The shared cache is keyed by source and doesn't have to be
+     * cleared.
+     * 
+     * {@inheritDoc}
+     */
+    public void clearTemplateCache() {
+        super.clearTemplateCache();
+        synchronized (parsedByText) {
+            parsedByText.clear();
+        }
+    }
+
+    /**
+     * @param text
+     *            a plain text template
+     * @return the source of the template
+     * @throws IOException
+     *             if the source could not be written
+     */
+    private String getSource(final Template text) throws IOException {
+        StringWriter source = new StringWriter();
+        text.dump(source);
+        return source.toString();
+    }
+}
@@ -0,0 +1,93 @@
+package com.monator.freemarker.view;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.springframework.web.servlet.view.freemarker.FreeMarkerConfigurer;
+
+import com.monator.freemarker.service.ParsedTemplateCache;
+
+import freemarker.template.Configuration;
+
+/**
+ * A {@link FreeMarkerConfigurer} that creates a {@link SharedTemplateConfiguration}, so that the configurers of the webapp share parsed
+ * templates through one {@link ParsedTemplateCache}. Configurers with the same FreeMarker settings, variables and default encoding
+ * share templates. Without a parsed template cache a plain FreeMarker configuration is created.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class SharedTemplateFreeMarkerConfigurer extends FreeMarkerConfigurer {
+
+    /** The shared cache of parsed templates, <code>null</code> if not used. */
+    private ParsedTemplateCache parsedTemplateCache;
+
+    /** The FreeMarker settings, sorted by name. */
+    private Map<Object, Object> settings = new TreeMap<Object, Object>();
+
+    /** The shared variables, sorted by name. */
+    private Map<String, Object> variables = new TreeMap<String, Object>();
+
+    /** The default encoding of templates. */
+    private String defaultEncoding;
+
+    /**
+     * Sets the cache of parsed templates shared by the configurers of the webapp.
+     * 
+     * @param parsedTemplateCache
+     *            the parsed template cache
+     */
+    public final void setParsedTemplateCache(final ParsedTemplateCache parsedTemplateCache) {
+        this.parsedTemplateCache = parsedTemplateCache;
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.ui.freemarker.FreeMarkerConfigurationFactory#setFreemarkerSettings(java.util.Properties)
+     */
+    public void setFreemarkerSettings(final Properties settings) {
+        super.setFreemarkerSettings(settings);
+        this.settings = new TreeMap<Object, Object>(settings);
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.ui.freemarker.FreeMarkerConfigurationFactory#setFreemarkerVariables(java.util.Map)
+     */
+    public void setFreemarkerVariables(final Map<String, Object> variables) {
+        super.setFreemarkerVariables(variables);
+        this.variables = new TreeMap<String, Object>(variables);
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.ui.freemarker.FreeMarkerConfigurationFactory#setDefaultEncoding(java.lang.String)
+     */
+    public void setDefaultEncoding(final String defaultEncoding) {
+        super.setDefaultEncoding(defaultEncoding);
+        this.defaultEncoding = defaultEncoding;
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.ui.freemarker.FreeMarkerConfigurationFactory#newConfiguration()
+     */
+    protected Configuration newConfiguration() {
+        if (parsedTemplateCache == null) {
+            return new Configuration();
+        }
+        return new SharedTemplateConfiguration(parsedTemplateCache, getSettingsKey());
+    }
+
+    /**
+     * Returns the key of the settings that templates are parsed and rendered with. Variables are compared by identity, so configurers
+     * only share templates when they share the variable objects.
+     * 
+     * @return the settings key
+     */
+    private String getSettingsKey() {
+        StringBuilder key = new StringBuilder();
+        key.append(settings).append('|').append(defaultEncoding);
+        for (Map.Entry<String, Object> variable : variables.entrySet()) {
+            key.append('|').append(variable.getKey()).append('@').append(System.identityHashCode(variable.getValue()));
+        }
+        return key.toString();
+    }
+}
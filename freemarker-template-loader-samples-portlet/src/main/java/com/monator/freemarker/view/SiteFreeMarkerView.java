@@ -0,0 +1,128 @@
+package com.monator.freemarker.view;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.servlet.view.freemarker.FreeMarkerView;
+
+import com.liferay.portal.service.ServiceContext;
+import com.liferay.portal.service.ServiceContextThreadLocal;
+import com.monator.freemarker.metrics.RenderTrace;
+import com.monator.freemarker.util.SiteTemplateNameUtil;
+
+import freemarker.template.SimpleHash;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+
+/**
+ * A {@link FreeMarkerView} that qualifies the template name with the Site the page is rendered for, taken from the
+ * {@link ServiceContext} of the request. Each Site then gets its own entry in FreeMarker's template cache and the template loaders can
+ * look the template up in the Site's own template folder first.
+ * 
+ * With a slow render threshold set, each render is traced in a {@link RenderTrace}: the time spent getting the template, in each
+ * template loader call, parsing and rendering, and the backend that served each template. Renders taking longer than the threshold
+ * are logged as one line of <code>key=value</code> pairs at warn level, all traced renders at debug level.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class SiteFreeMarkerView extends FreeMarkerView {
+
+    /** Constant to use for logging. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SiteFreeMarkerView.class);
+
+    /** Determines if template names are qualified with the requesting Site. */
+    private boolean siteTemplates;
+
+    /** Milliseconds after which a render is logged as slow, zero or less disables the tracing. */
+    private long slowRenderMillis;
+
+    /**
+     * Determines if template names are qualified with the requesting Site.
+     * 
+     * @param siteTemplates
+     *            if true, template names are qualified
+     */
+    public final void setSiteTemplates(final boolean siteTemplates) {
+        this.siteTemplates = siteTemplates;
+    }
+
+    /**
+     * Sets the time after which a render is logged as slow, along with its trace.
+     * 
+     * @param slowRenderMillis
+     *            the time in milliseconds, zero or less disables the tracing
+     */
+    public final void setSlowRenderMillis(final long slowRenderMillis) {
+        this.slowRenderMillis = slowRenderMillis;
+    }
+
+    /**
+     * Traces the render and logs the trace if the render was slow. A view rendered within another traced render is part of its trace.
+     * 
+     * {@inheritDoc}
+     */
+    protected void renderMergedTemplateModel(final Map<String, Object> model, final HttpServletRequest request,
+            final HttpServletResponse response) throws Exception {
+        if (slowRenderMillis <= 0 || RenderTrace.current() != null) {
+            super.renderMergedTemplateModel(model, request, response);
+            return;
+        }
+        RenderTrace trace = RenderTrace.start(getUrl());
+        try {
+            super.renderMergedTemplateModel(model, request, response);
+        } finally {
+            trace.end();
+            if (trace.getElapsedMillis() >= slowRenderMillis) {
+                LOGGER.warn("Slow render " + trace);
+            } else if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Render " + trace);
+            }
+        }
+    }
+
+    /**
+     * Qualifies the name with the requesting Site when Site templates are enabled and the request has a Site.
+     * 
+     * {@inheritDoc}
+     */
+    protected Template getTemplate(final String name, final Locale locale) throws IOException {
+        RenderTrace trace = RenderTrace.current();
+        long start = System.nanoTime();
+        try {
+            ServiceContext serviceContext = ServiceContextThreadLocal.getServiceContext();
+            if (!siteTemplates || serviceContext == null || serviceContext.getScopeGroupId() <= 0) {
+                return super.getTemplate(name, locale);
+            }
+            return super.getTemplate(SiteTemplateNameUtil.qualify(serviceContext.getScopeGroupId(), name), locale);
+        } finally {
+            if (trace != null) {
+                trace.record("getTemplate", System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Records the time spent rendering in the trace, which includes loading and parsing the included templates.
+     * 
+     * {@inheritDoc}
+     */
+    protected void processTemplate(final Template template, final SimpleHash model, final HttpServletResponse response)
+            throws IOException, TemplateException {
+        RenderTrace trace = RenderTrace.current();
+        long start = System.nanoTime();
+        try {
+            super.processTemplate(template, model, response);
+        } finally {
+            if (trace != null) {
+                trace.record("render", System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.monator.freemarker.view;
+
+import org.springframework.web.servlet.view.AbstractUrlBasedView;
+import org.springframework.web.servlet.view.freemarker.FreeMarkerViewResolver;
+
+/**
+ * A {@link FreeMarkerViewResolver} creating {@link SiteFreeMarkerView}s.
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+public class SiteFreeMarkerViewResolver extends FreeMarkerViewResolver {
+
+    /** Determines if template names are qualified with the requesting Site. */
+    private boolean siteTemplates;
+
+    /** Milliseconds after which a render is logged as slow, zero or less disables the tracing. */
+    private long slowRenderMillis;
+
+    /**
+     * Creates a new resolver for {@link SiteFreeMarkerView}s.
+     */
+    public SiteFreeMarkerViewResolver() {
+        setViewClass(SiteFreeMarkerView.class);
+    }
+
+    /**
+     * Determines if the views qualify template names with the requesting Site, see {@link SiteFreeMarkerView}.
+     * 
+     * @param siteTemplates
+     *            if true, template names are qualified
+     */
+    public final void setSiteTemplates(final boolean siteTemplates) {
+        this.siteTemplates = siteTemplates;
+    }
+
+    /**
+     * Sets the time after which the views log a render as slow, see {@link SiteFreeMarkerView}.
+     * 
+     * @param slowRenderMillis
+     *            the time in milliseconds, zero or less disables the tracing
+     */
+    public final void setSlowRenderMillis(final long slowRenderMillis) {
+        this.slowRenderMillis = slowRenderMillis;
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.web.servlet.view.UrlBasedViewResolver#buildView(java.lang.String)
+     */
+    protected AbstractUrlBasedView buildView(final String viewName) throws Exception {
+        AbstractUrlBasedView view = super.buildView(viewName);
+        ((SiteFreeMarkerView) view).setSiteTemplates(siteTemplates);
+        ((SiteFreeMarkerView) view).setSlowRenderMillis(slowRenderMillis);
+        return view;
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * Package for the FreeMarker views of the portlets
+ * 
+ * @author Andreas Magnusson Monator Technologies AB
+ * 
+ */
+package com.monator.freemarker.view;
\ No newline at end of file